@@ -0,0 +1,213 @@
+/* Name: Calibrate_Grid.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: This plugin calibrates the conversion from image pixels to mirror travel.
+ * The microbeam fires a grid of spots at known mirror positions (mm) into a gel. The user then acquires an image
+ * of the gel at the zoom used for cutting and makes it the active image. The spots are detected in parallel over
+ * image tiles and matched to the grid points they were fired at, using the current calibration as a first guess.
+ * A robust (RANSAC) affine fit, which ignores spots that were missed or matched wrongly, gives the new calibration,
+ * which is saved to the microbeam config file after the user accepts it. Only the linear part and the offset are
+ * fitted: an existing distortion correction is subtracted from the grid positions first, and kept.
+ */
+
+import ij.*;
+import ij.gui.*;
+import ij.plugin.*;
+import ij.process.*;
+
+import java.util.List;
+
+import laserj.*;
+import laserj.calib.*;
+
+public class Calibrate_Grid implements PlugIn {
+
+	private static final int DETECTION_TILE = 256;		// pixels
+	private static final int RANSAC_ITERATIONS = 500;
+
+	public void run(String arg) {
+		IJ.log("\n\n\n@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n\nCALIBRATE_GRID"
+				+ "\n\n@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n\n\n");
+		double maxVelocity = 0.2;
+
+		// Displays a dialog box to configure the grid
+		int rows = 10;
+		int columns = 10;
+		double spacing = 0.1;
+		int exposure = 100;
+		int mag = 40;
+		int zoom = 1;
+		GenericDialog gd = new GenericDialog("Calibrate Grid");
+		gd.addMessage("The grid is fired around the mirror home (0, 0).\nCenter the microbeam first.");
+		gd.addNumericField("Rows of spots: ", rows, 0);
+		gd.addNumericField("Columns of spots: ", columns, 0);
+		gd.addNumericField("Spacing of spots (mm of mirror travel): ", spacing, 3);
+		gd.addNumericField("Exposure per spot (ms): ", exposure, 0);
+		gd.addNumericField("Magnification Factor of Objective: ", mag, 0);
+		gd.addNumericField("Digital Zoom of Image: ", zoom, 0);
+		gd.showDialog();
+		if (gd.wasCanceled()) {
+			IJ.error("PlugIn canceled! MICROBEAM NOT CALIBRATED.");
+			return;
+		}
+		rows = (int) gd.getNextNumber();
+		columns = (int) gd.getNextNumber();
+		spacing = gd.getNextNumber();
+		exposure = (int) gd.getNextNumber();
+		mag = (int) gd.getNextNumber();
+		zoom = (int) gd.getNextNumber();
+		if (rows < 2 || columns < 2 || spacing <= 0) {
+			IJ.error("The grid needs at least 2 rows and 2 columns with a positive spacing.");
+			return;
+		}
+
+		// Initializes the microbeam
+		Microbeam microbeam = MicrobeamSession.acquire();
+		try {
+			if (!microbeam.isSetupOK()) return;
+
+			/** LASER INCISION (GRID) **/
+			// Fire the grid row by row, alternating direction to keep mirror travel short
+			int n = rows * columns;
+			double[] g1 = new double[n], g2 = new double[n];
+			for (int r = 0; r < rows; r++) {
+				for (int c = 0; c < columns; c++) {
+					int i = r*columns + c;
+					g1[i] = (c - 0.5*(columns - 1)) * spacing;
+					g2[i] = (r - 0.5*(rows - 1)) * spacing;
+				}
+			}
+			microbeam.setMirrorVelocity(maxVelocity);
+			for (int r = 0; r < rows; r++) {
+				for (int k = 0; k < columns; k++) {
+					int i = r*columns + (r%2 == 0 ? k : columns - 1 - k);
+					if (IJ.escapePressed()) {
+						microbeam.moveToMM(0, 0);
+						IJ.error("PlugIn canceled! MICROBEAM NOT CALIBRATED.");
+						return;
+					}
+					microbeam.moveToMM(g1[i], g2[i]);
+					microbeam.openShutter();
+					IJ.wait(exposure);
+					microbeam.closeShutter();
+				}
+			}
+			microbeam.moveToMM(0, 0);
+
+			// Wait for the user to acquire the image of the grid
+			new WaitForUserDialog("Calibrate Grid", "Acquire an image of the grid at digital zoom "+zoom
+					+ ",\nmake it the active image, then press OK.").show();
+			ImagePlus imp = WindowManager.getCurrentImage();
+			if (imp == null) {
+				IJ.error("No image of the grid. MICROBEAM NOT CALIBRATED.");
+				return;
+			}
+			ImageProcessor ip = imp.getProcessor();
+			int w = ip.getWidth();
+			int h = ip.getHeight();
+
+			// Detect the spots
+			long t0 = System.currentTimeMillis();
+			List<SpotDetector.Spot> spots = new SpotDetector().detectTiled(ip, DETECTION_TILE);
+			IJ.log("Detected "+spots.size()+" spots for "+n+" grid points in "+(System.currentTimeMillis()-t0)+" ms.");
+
+			// Match spots to grid points, first through the current calibration, then through the fit itself.
+			// A calibration profile for this objective and zoom maps image pixels directly, without dividing by the zoom.
+			CalibrationProfile profile = microbeam.selectProfile(imp, mag, zoom);
+			zoom = microbeam.get_calibration_zoom(zoom);
+			CalibrationModel prior = microbeam.get_calibration_model();
+			double[] cal = prior.getLinear();
+			double[] guess = {cal[0], cal[1], prior.getOffset1(), cal[2], cal[3], prior.getOffset2()};
+			AffineFit fit = null;
+			int matched = 0;
+			for (int pass = 0; pass < 2; pass++) {
+				double[] u = new double[n], v = new double[n];
+				matched = match(spots, guess, g1, g2, w, h, zoom, spacing, u, v);
+				double[] m1 = new double[n], m2 = new double[n];
+				int k = 0;
+				for (int i = 0; i < n; i++) {
+					if (Double.isNaN(u[i])) continue;
+					u[k] = u[i];
+					v[k] = v[i];
+					m1[k] = g1[i] - prior.distortion1(u[i], v[i]);		// what the linear part has to reach
+					m2[k] = g2[i] - prior.distortion2(u[i], v[i]);
+					k++;
+				}
+				AffineFit f = AffineFit.ransac(u, v, m1, m2, k, 0.25 * spacing, RANSAC_ITERATIONS);
+				if (f == null) break;
+				fit = f;
+				guess = fit.getCoefficients();
+			}
+			if (fit == null || fit.getInlierCount() < 3) {
+				IJ.error("Too few spots matched the grid ("+matched+" of "+n+"). MICROBEAM NOT CALIBRATED.");
+				return;
+			}
+			double[] c = fit.getCoefficients();
+			IJ.log("Calibration fitted to "+fit.getInlierCount()+" of "+n+" grid points, rms residual "
+					+IJ.d2s(fit.getRms()*1000, 2)+" microns of mirror travel.");
+
+			// Ask the user to accept the new calibration
+			GenericDialog accept = new GenericDialog("Accept Calibration?");
+			accept.addMessage("Spots used: "+fit.getInlierCount()+" of "+n+", rms residual "+IJ.d2s(fit.getRms()*1000, 2)+" microns.");
+			accept.addMessage("                      current            fitted");
+			accept.addMessage("axis 1 per pixel (X):  "+IJ.d2s(cal[0], 8)+"    "+IJ.d2s(c[0], 8));
+			accept.addMessage("axis 1 per pixel (Y):  "+IJ.d2s(cal[1], 8)+"    "+IJ.d2s(c[1], 8));
+			accept.addMessage("axis 2 per pixel (X):  "+IJ.d2s(cal[2], 8)+"    "+IJ.d2s(c[3], 8));
+			accept.addMessage("axis 2 per pixel (Y):  "+IJ.d2s(cal[3], 8)+"    "+IJ.d2s(c[4], 8));
+			accept.addMessage("offset of image center (mm):  "+IJ.d2s(c[2], 4)+", "+IJ.d2s(c[5], 4));
+			if (prior.hasDistortion())
+				accept.addMessage("The distortion correction at the edges of the field is kept.");
+			accept.addCheckbox("Save "+(profile != null ? "profile "+profile.getName() : "default calibration")
+					+" to "+microbeam.get_config_path(), true);
+			accept.showDialog();
+			if (accept.wasCanceled() || !accept.getNextBoolean()) {
+				IJ.log("Calibration not saved.");
+				return;
+			}
+			microbeam.set_calibration(prior.withAffine(c[0], c[1], c[3], c[4], c[2], c[5]));
+			microbeam.saveConfig(microbeam.get_config_path());
+		} finally {
+			MicrobeamSession.release(microbeam);
+		}
+		IJ.log("\nDONE\n");
+	}
+
+	/**
+	 * Pairs each grid point with the nearest spot to where the map predicts it, within 40% of the grid spacing.
+	 * @param map {a11, a12, b1, a21, a22, b2} from unzoomed pixels relative to the image center to mm
+	 * @param u receives the matched spot's x relative to the image center in unzoomed pixels, or NaN if none
+	 * @param v receives the matched spot's y likewise
+	 * @return number of grid points matched
+	 */
+	static int match(List<SpotDetector.Spot> spots, double[] map, double[] g1, double[] g2, int w, int h, int zoom,
+			double spacing, double[] u, double[] v) {
+		double det = map[0]*map[4] - map[1]*map[3];
+		int matched = 0;
+		for (int i = 0; i < g1.length; i++) {
+			u[i] = v[i] = Double.NaN;
+			if (det == 0) continue;
+			// invert the map to predict the pixel position of grid point i
+			double d1 = g1[i] - map[2], d2 = g2[i] - map[5];
+			double pu = ( map[4]*d1 - map[1]*d2) / det;
+			double pv = (-map[3]*d1 + map[0]*d2) / det;
+			double px = w/2 + pu*zoom, py = h/2 + pv*zoom;
+			// search radius: 40% of the grid spacing, in pixels
+			double radius = 0.4 * spacing * zoom / Math.sqrt(Math.abs(det));
+			double best = radius * radius;
+			for (SpotDetector.Spot spot : spots) {
+				double dx = spot.getX() - px, dy = spot.getY() - py;
+				double d = dx*dx + dy*dy;
+				if (d < best) {
+					best = d;
+					u[i] = (spot.getX() - w/2) / zoom;
+					v[i] = (spot.getY() - h/2) / zoom;
+				}
+			}
+			if (!Double.isNaN(u[i])) matched++;
+		}
+		return matched;
+	}
+
+}
@@ -8,8 +8,8 @@
  * microscope field of view.
  * With the microbeam at (0,0), use the manual switch on the shutter controller to expose a gel to the beam for one pulse.
  * Save the acquired image and open it in ImageJ.
- * Use the crosshair tool to determine the coordinates of the ablated spot.
- * Execute the plugin, and enter the coordinates of the ablated spot.
+ * Execute the plugin. The ablated spot is found automatically and its coordinates are filled in; if it is not
+ * found, use the crosshair tool to determine the coordinates of the ablated spot and enter them.
  * The plugin will steer the microbeam to the calculated center of the image and fire one shot.
  * If the user specifies that the new ablation spot is centered correctly, the plugin resets the mirror controller 
  * to use the current position as the new home (0,0) position.
@@ -19,11 +19,17 @@ import ij.*;
 import ij.process.*;
 import ij.gui.*;
 import ij.plugin.filter.*;
+import java.util.List;
+
 import laserj.*;
+import laserj.calib.SpotDetector;
 
 public class Center_Microbeam implements PlugInFilter {
 
+	private ImagePlus imp;
+
     public int setup(String arg, ImagePlus imp) {
+		this.imp = imp;
 		IJ.log("\n\n\n@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n\nCENTER_MICROBEAM"
 				+ "\n\n@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n\n\n");
         return DOES_ALL + NO_CHANGES;
@@ -32,65 +38,83 @@ public class Center_Microbeam implements PlugInFilter {
 	public void run(ImageProcessor ip) {
 		double maxVelocity = 0.2;
 
-		// Displays a dialog box for the user to enter the coordinates of the ablated spot
-		int cx = (int) (ip.getWidth()/2);
-		int cy = (int) (ip.getHeight()/2);
+		// Looks for the ablated spot, falling back to the image center
+		double cx = ip.getWidth()/2;
+		double cy = ip.getHeight()/2;
+		long t0 = System.currentTimeMillis();
+		List<SpotDetector.Spot> spots = new SpotDetector().detect(ip);
+		String found;
+		if (spots.isEmpty()) {
+			found = "No ablated spot detected. Enter its coordinates from the crosshair tool.";
+		} else {
+			SpotDetector.Spot spot = spots.get(0);
+			cx = spot.getX();
+			cy = spot.getY();
+			found = "Ablated spot detected at "+IJ.d2s(cx,2)+", "+IJ.d2s(cy,2)+" ("+spot.getArea()+" pixels"
+					+(spots.size() > 1 ? ", strongest of "+spots.size() : "")+").";
+		}
+		IJ.log(found+" Detection took "+(System.currentTimeMillis()-t0)+" ms.");
+
+		// Displays a dialog box for the user to confirm or enter the coordinates of the ablated spot
 		int zoom = 1;
 		GenericDialog gd = new GenericDialog("Center Microbeam");
 		gd.addMessage("CENTER MICROBEAM AT SAME ZOOM YOU WILL USE FOR CUTTING!");
 		gd.addMessage("");
-		gd.addNumericField("Current Coordinates of Ablated Zone - X (pixels): ", cx, 0);
-		gd.addNumericField("Current Coordinates of Ablated Zone - Y (pixels): ", cy, 0);
+		gd.addMessage(found);
+		gd.addNumericField("Current Coordinates of Ablated Zone - X (pixels): ", cx, 2);
+		gd.addNumericField("Current Coordinates of Ablated Zone - Y (pixels): ", cy, 2);
 		gd.addNumericField("Digital Zoom of Image: ", zoom, 0);
 		gd.showDialog();
 		if (gd.wasCanceled()) {
 			IJ.error("PlugIn canceled! MICROBEAM NOT CENTERED.");
 			return;
 		}
-		cx = (int) gd.getNextNumber();
-		cy = (int) gd.getNextNumber();
+		cx = gd.getNextNumber();
+		cy = gd.getNextNumber();
 		zoom = (int) gd.getNextNumber();
 
 		// Initializes the microbeam
-		Microbeam microbeam = new Microbeam(Microbeam.CONFIG_FILENAME);
-		if (!microbeam.isSetupOK()) return;
+		Microbeam microbeam = MicrobeamSession.acquire();
+		try {
+			if (!microbeam.isSetupOK()) return;
+			microbeam.selectProfile(imp, 0, zoom);
 
-		/** LASER INCISION (CENTERING) **/
-		// Prepare
-		ip.snapshot();
+			/** LASER INCISION (CENTERING) **/
+			// Prepare
+			ip.snapshot();
 		
-		// Move to computed center
-		microbeam.setMirrorVelocity(maxVelocity);
-		microbeam.moveToPIXELS(ip.getWidth() - cx, ip.getHeight() - cy, ip, zoom);
-		IJ.wait(200);
+			// Move to computed center
+			microbeam.setMirrorVelocity(maxVelocity);
+			microbeam.moveToPIXELS(ip.getWidth() - cx, ip.getHeight() - cy, ip, zoom);
 		
-		// Point shot at new center
-		microbeam.openShutter();
-		IJ.wait(100);
-		microbeam.closeShutter();
+			// Point shot at new center
+			microbeam.openShutter();
+			IJ.wait(100);
+			microbeam.closeShutter();
 
-		// Ask the user if the newly ablated spot is correctly centered. if so, designate the current position as the origin.
-		GenericDialog spotcheck = new GenericDialog("IS THE NEW SPOT CENTERED?");
-		spotcheck.addCheckbox("Check to set new spot position to microbeam home (0, 0)?", true);
-		spotcheck.showDialog();
-		// if dialog cancelled, move microbeam to home and turn it off
-		if (spotcheck.wasCanceled()) {
-			microbeam.moveToMM(0, 0);
-			microbeam.off();
-			IJ.error("PlugIn canceled! Mirror returned to original 0, 0 position.");
-			return;
-		}
-		// if verified to be new center, save the center location
-		boolean centerOK = spotcheck.getNextBoolean();
-		if (centerOK)
-			microbeam.defineMirrorHome();
-		else {
-			microbeam.moveToMM(0, 0);
-			IJ.showMessage("MICROBEAM NOT CENTERED!", "Mirror returned to original 0, 0 position.");
-		}
+			// Ask the user if the newly ablated spot is correctly centered. if so, designate the current position as the origin.
+			GenericDialog spotcheck = new GenericDialog("IS THE NEW SPOT CENTERED?");
+			spotcheck.addCheckbox("Check to set new spot position to microbeam home (0, 0)?", true);
+			spotcheck.showDialog();
+			// if dialog cancelled, move microbeam to home and release it
+			if (spotcheck.wasCanceled()) {
+				microbeam.moveToMM(0, 0);
+				IJ.error("PlugIn canceled! Mirror returned to original 0, 0 position.");
+				return;
+			}
+			// if verified to be new center, save the center location
+			boolean centerOK = spotcheck.getNextBoolean();
+			if (centerOK)
+				microbeam.defineMirrorHome();
+			else {
+				microbeam.moveToMM(0, 0);
+				IJ.showMessage("MICROBEAM NOT CENTERED!", "Mirror returned to original 0, 0 position.");
+			}
 
-		// turn microbeam off and clean up
-		microbeam.off();
+			// release microbeam and clean up
+		} finally {
+			MicrobeamSession.release(microbeam);
+		}
 		IJ.log("\nDONE\n");
     }
 
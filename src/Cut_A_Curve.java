@@ -15,9 +15,11 @@ import ij.process.*;
 import ij.gui.*;
 
 import java.awt.*;
+import java.util.function.BooleanSupplier;
 
 import ij.plugin.filter.*;
 import laserj.*;
+import laserj.path.*;
 
 public class Cut_A_Curve implements PlugInFilter {
 
@@ -26,6 +28,7 @@ public class Cut_A_Curve implements PlugInFilter {
 
 	private double[] xpath;
 	private double[] ypath;
+	private boolean straightEdges;		// polygon or segmented line, whose corners the cut must keep
 	
 	public int setup(String arg, ImagePlus imp) {
 		IJ.log("\n\n\n@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n\nCUT_A_CURVE"
@@ -58,11 +61,19 @@ public class Cut_A_Curve implements PlugInFilter {
 		int mag = 40;
 		int zoom = 1;
 		boolean resetPosition = true;
+		boolean stream = true;
+		double tolerance = 0.5;
+		double arcTolerance = 0.5;
+		double spacing = 0;
 		GenericDialog gd = new GenericDialog("Experimental Parameters");
 		gd.addNumericField("Total number of repeated incisions:", ncuts, 0);
 		gd.addNumericField("Delay between repeated incisions (s):", repdelay, 1);
 		gd.addCheckbox("Reset position between repeated incisions", resetPosition);
 		gd.addNumericField("Vectorial velocity of mirror drive:", velocity, 3);
+		gd.addCheckbox("Stream path (continuous motion, no stop at each vertex)", stream);
+		gd.addNumericField("Path simplification tolerance (microns, 0 = off):", tolerance, 2);
+		gd.addNumericField("Resampling spacing along the curve (microns, 0 = off):", spacing, 2);
+		gd.addNumericField("Arc fitting tolerance (microns, 0 = lines only):", arcTolerance, 2);
 		gd.addMessage("");
 		gd.addNumericField("Magnification Factor of Objective:", mag, 0);
 		gd.addNumericField("Zoom Factor of Image:", zoom, 0);
@@ -77,6 +88,10 @@ public class Cut_A_Curve implements PlugInFilter {
 	   	repdelay = gd.getNextNumber() * 1000;
 	   	resetPosition = gd.getNextBoolean();
 		velocity = gd.getNextNumber();
+		stream = gd.getNextBoolean();
+		tolerance = gd.getNextNumber();
+		spacing = gd.getNextNumber();
+		arcTolerance = gd.getNextNumber();
 		if (velocity > maxVelocity) {
 			velocity = maxVelocity;
 			IJ.log("Mirror Vectorial Velocity too High. Setting to Max Velocity = "+IJ.d2s(maxVelocity));
@@ -89,82 +104,164 @@ public class Cut_A_Curve implements PlugInFilter {
 		zoom = (int) gd.getNextNumber();
 
 		// Initializes the microbeam system, stop if setup failed
-		Microbeam microbeam = new Microbeam(Microbeam.CONFIG_FILENAME);
-		if (!microbeam.isSetupOK()) return;
+		Microbeam microbeam = MicrobeamSession.acquire();
+		try {
+			if (!microbeam.isSetupOK()) return;
+			microbeam.selectProfile(imp, mag, zoom);
+
+			// Either place vertices at equal distances along the selection, so every part of the cut gets the same
+			// dose, or remove vertices that do not change its shape by more than the tolerance
+			if (spacing > 0)
+				resamplePath(microbeam.micronsToPixels(spacing, zoom));
+			else if (tolerance > 0)
+				simplifyPath(microbeam.micronsToPixels(tolerance, zoom));
 
-		/** LASER INCISION **/
-		// store original image
-		ip.snapshot();
+			/** LASER INCISION **/
+			// store original image
+			ip.snapshot();
 		
-		// Move microbeam to correct starting location
-		microbeam.setMirrorVelocity(maxVelocity);
-		microbeam.moveToPIXELS(xpath[0], ypath[0], ip, zoom);
-		ip.moveTo((int) xpath[0], (int) ypath[0]);
+			// Move microbeam to correct starting location
+			microbeam.setMirrorVelocity(maxVelocity);
+			microbeam.moveToPIXELS(xpath[0], ypath[0], ip, zoom);
+			ip.moveTo((int) xpath[0], (int) ypath[0]);
 		
-		// Cut a curve by turning on shutter and moving microbeam to destination location
-		microbeam.setMirrorVelocity(velocity);
-		long t1 = System.currentTimeMillis();
-		for(int i = 1; i <= ncuts; i++) {	// iterate over each repeated cut
-			// make audio beep, wait 0.5s, open shutter, wait 0.1s.
-			IJ.beep();
-			IJ.wait(500);
-			microbeam.openShutter();	
-			IJ.wait(100);
-			// compute traversal path
-			int startIndex = 1;
-			int endIndex = xpath.length-1;
-			int dir = 1;
-			if (!resetPosition) {
-				if (i%2 == 1) { // Cut forward
-					dir = 1;
-					startIndex = 1;
-					endIndex = xpath.length-1;
-				} else {        // Cut backward
-					dir = -1;
-					startIndex = Math.max(0, xpath.length - 2);
-					endIndex = -1;
-				}
+			// Compile the forward and backward passes into mirror lines and arcs once; arcs are only used for streamed cuts
+			int nv = xpath.length;
+			double[] xbwd = new double[nv], ybwd = new double[nv];
+			for (int j = 0; j < nv; j++) {
+				xbwd[j] = xpath[nv-1-j];	ybwd[j] = ypath[nv-1-j];
 			}
-			// traverse path
-			for(int j = startIndex; j <= endIndex; j+=dir)  {	// traverse each segment of path
-				if (!win.running) break;
-				// make cut on segment
-				microbeam.moveToPIXELS(xpath[j], ypath[j], ip, zoom);
-				// draw physical line on display image that denotes cut
-				ip.setColor(Color.white); ip.setLineWidth(3);
-				ip.lineTo((int)xpath[j], (int)ypath[j]);
-				imp.updateAndDraw();
-				// wait 0.1s before next segment
-				IJ.wait(100);
-				// move pencil on display image to next segment
-				ip.moveTo((int)xpath[j], (int)ypath[j]);
+			double arcPixels = stream ? microbeam.micronsToPixels(arcTolerance, zoom) : 0;
+			Trajectory forward = microbeam.compilePIXELS(xpath, ypath, ip, zoom, arcPixels);
+			Trajectory backward = forward;
+			if (ncuts > 1 && !resetPosition)
+				backward = microbeam.compilePIXELS(xbwd, ybwd, ip, zoom, arcPixels);
+			if (stream && arcTolerance > 0)
+				IJ.log("Arc fitting traced "+(xpath.length-1)+" path segments as "+forward.countArcs()+" arcs and "
+						+(forward.size()-forward.countArcs())+" lines (tolerance "+IJ.d2s(arcTolerance,2)+" microns)");
+
+			// Predict the exposure of each incision and the duration of the whole job before the shutter opens
+			microbeam.setMirrorVelocity(velocity);
+			MotionEstimator estimator = microbeam.getMotionEstimator();
+			double shutterSeconds = microbeam.getShutterSeconds();
+			double predictedExposure = shutterSeconds + passSeconds(estimator, forward, stream);
+			double cutSeconds = 0.5 + predictedExposure + shutterSeconds;
+			double betweenSeconds = Math.max(0, repdelay - 500) / 1000.0;
+			if (resetPosition) {
+				int last = forward.size() - 1;
+				betweenSeconds += estimator.moveSeconds(Math.hypot(forward.getX(last) - forward.getSegmentStartX(0),
+						forward.getY(last) - forward.getSegmentStartY(0)));
 			}
-			// close shutter and wait 0.1s
-			microbeam.closeShutter();
-			IJ.wait(100);
-			// check if there is another cut to perform
-			if (!win.running) break;
-			if (i < ncuts) {
-				if (resetPosition) {
-					microbeam.moveToPIXELS(xpath[0], ypath[0], ip, zoom);
-					ip.moveTo((int)xpath[0], (int)ypath[0]);
+			double eta = ncuts * cutSeconds + (ncuts - 1) * betweenSeconds;
+			IJ.log("Predicted exposure per incision = "+IJ.d2s(predictedExposure,2)+" s, job time = "+IJ.d2s(eta,1)+" s");
+			if (Log.enabled(Log.DEBUG))
+				logSchedule(estimator, forward, stream);
+
+			// Cut a curve by turning on shutter and moving microbeam to destination location
+			BooleanSupplier stopped = new BooleanSupplier() {	// the plugin's stop button also ends a streamed pass
+				public boolean getAsBoolean() {
+					return !win.running;
+				}
+			};
+			long t1 = System.currentTimeMillis();
+			long exposureNanos = 0;
+			for(int i = 1; i <= ncuts; i++) {	// iterate over each repeated cut
+				// make audio beep, wait 0.5s, open shutter and start moving once it is open
+				IJ.beep();
+				IJ.wait(500);
+				long opened = System.nanoTime();
+				microbeam.openShutter();
+				microbeam.waitForShutter();
+				// compute traversal path
+				int startIndex = 1;
+				int endIndex = xpath.length-1;
+				int dir = 1;
+				if (!resetPosition) {
+					if (i%2 == 1) { // Cut forward
+						dir = 1;
+						startIndex = 1;
+						endIndex = xpath.length-1;
+					} else {        // Cut backward
+						dir = -1;
+						startIndex = Math.max(0, xpath.length - 2);
+						endIndex = 0;
+					}
+				}
+				// traverse path
+				if (stream) {
+					Trajectory pass = (dir == -1) ? backward : forward;
+					if (ncuts > 1)		// repeated cuts run from a program stored on the controller
+						microbeam.programPath(pass, stopped);
+					else
+						microbeam.streamPath(pass, stopped);
+					// draw physical line on display image that denotes cut
+					ip.setColor(Color.white); ip.setLineWidth(3);
+					for(int j = startIndex; dir*j <= dir*endIndex; j+=dir)
+						ip.lineTo((int)xpath[j], (int)ypath[j]);
+					imp.updateAndDraw();
+				}
+				else for(int j = startIndex; dir*j <= dir*endIndex; j+=dir)  {	// traverse each segment of path
+					if (!win.running) break;
+					// make cut on segment
+					microbeam.moveToPIXELS(xpath[j], ypath[j], ip, zoom);
+					// draw physical line on display image that denotes cut
+					ip.setColor(Color.white); ip.setLineWidth(3);
+					ip.lineTo((int)xpath[j], (int)ypath[j]);
+					imp.updateAndDraw();
+					// move pencil on display image to next segment
+					ip.moveTo((int)xpath[j], (int)ypath[j]);
+				}
+				// close shutter, returns once it is closed
+				exposureNanos += System.nanoTime() - opened;
+				microbeam.closeShutter();
+				// check if there is another cut to perform
+				if (!win.running) break;
+				if (i < ncuts) {
+					if (resetPosition) {
+						microbeam.moveToPIXELS(xpath[0], ypath[0], ip, zoom);
+						ip.moveTo((int)xpath[0], (int)ypath[0]);
+					}
+					// delay between repeated incisions
+					IJ.wait((int) Math.max(0, repdelay - 500));
+					// clear display image for next incision
+					ip.reset();
+					imp.updateAndDraw();
 				}
-				// delay between repeated incisions
-				IJ.wait((int) Math.max(0, repdelay - 500));
-				// clear display image for next incision
-				ip.reset();
-				imp.updateAndDraw();
 			}
-		}
 
-		// Move microbeam back to home and clean up
-		long t2 = System.currentTimeMillis();
-		microbeam.setMirrorVelocity(maxVelocity);
-		microbeam.moveToMM(0, 0);
-		microbeam.off();
+			// Move microbeam back to home and clean up
+			long t2 = System.currentTimeMillis();
+			microbeam.setMirrorVelocity(maxVelocity);
+			microbeam.moveToMM(0, 0);
+			IJ.log("Total Exposure Time  = "+IJ.d2s(exposureNanos / 1e9,2)+" s (predicted "+IJ.d2s(ncuts * predictedExposure,2)+" s)");
+			IJ.log("Total Job Time  = "+IJ.d2s((t2-t1) / 1000.0,1)+" s (predicted "+IJ.d2s(eta,1)+" s)");
+		} finally {
+			MicrobeamSession.release(microbeam);
+		}
 		IJ.log("\nDONE\n");
-		double exposure = ((double)(t2-t1-1500)) / 1000.0;
-		IJ.log("Total Exposure Time  = "+IJ.d2s(exposure,2)+" s");
+	}
+
+	/**
+	 * @return predicted time to trace one pass of the path with the shutter open, s
+	 */
+	private static double passSeconds(MotionEstimator estimator, Trajectory pass, boolean stream) {
+		if (stream)
+			return estimator.schedule(pass).getTotal();
+		double seconds = 0;
+		for (int i = 0; i < pass.size(); i++)		// one stop at each vertex
+			seconds += estimator.moveSeconds(pass.length(i));
+		return seconds;
+	}
+
+	private static void logSchedule(MotionEstimator estimator, Trajectory pass, boolean stream) {
+		MotionEstimator.Schedule schedule = estimator.schedule(pass);
+		double t = 0;
+		for (int i = 0; i < pass.size(); i++) {
+			double start = stream ? schedule.getStart(i) : t;
+			double end = stream ? schedule.getEnd(i) : (t += estimator.moveSeconds(pass.length(i)));
+			Log.debug("Segment "+i+(pass.getType(i) == Trajectory.ARC ? " arc" : " line")+"\t"
+					+IJ.d2s(pass.length(i)*1000, 1)+" um\t"+IJ.d2s(start,3)+" - "+IJ.d2s(end,3)+" s");
+		}
 	}
 
 	public void getXYCoordinates(ImagePlus imp) {
@@ -175,9 +272,42 @@ public class Cut_A_Curve implements PlugInFilter {
 		if (!(roi instanceof PolygonRoi))
 			throw new IllegalArgumentException("Polygon, freehand, segmented line, \nor freehand line selection required.");
 		PolygonRoi p = (PolygonRoi)roi;
+		straightEdges = (roi.getType()==Roi.POLYGON) || (roi.getType()==Roi.POLYLINE);
 		getPolygonPath(p);
 	}
 
+	/**
+	 * Simplifies the path with the Ramer-Douglas-Peucker algorithm.
+	 * @param tolerance in pixels
+	 */
+	void simplifyPath(double tolerance) {
+		int[] kept = PathSimplifier.simplify(xpath, ypath, tolerance);
+		int removed = xpath.length - kept.length;
+		double[] xs = new double[kept.length];
+		double[] ys = new double[kept.length];
+		for (int i = 0; i < kept.length; i++) {
+			xs[i] = xpath[kept[i]];
+			ys[i] = ypath[kept[i]];
+		}
+		xpath = xs;
+		ypath = ys;
+		IJ.log("Path simplification removed "+removed+" of "+(kept.length+removed)+" vertices (tolerance "+IJ.d2s(tolerance,2)+" pixels)");
+	}
+
+	/**
+	 * Resamples the path at constant arc length, along its straight edges for polygons and segmented lines,
+	 * and along a Catmull-Rom spline through its vertices for freehand selections.
+	 * @param spacing in pixels
+	 */
+	void resamplePath(double spacing) {
+		int before = xpath.length;
+		double[][] resampled = straightEdges ? SplineResampler.resample(xpath, ypath, spacing, 0)
+				: SplineResampler.resample(xpath, ypath, spacing);
+		xpath = resampled[0];
+		ypath = resampled[1];
+		IJ.log("Path resampled from "+before+" to "+xpath.length+" vertices (spacing "+IJ.d2s(spacing,2)+" pixels)");
+	}
+
 	void getPolygonPath(PolygonRoi p) {
 		int tool = Toolbar.getToolId();
 		boolean closed = ((tool==Toolbar.POLYGON) | (tool==Toolbar.FREEROI));
@@ -7,6 +7,7 @@
  */
 
 import laserj.Microbeam;
+import laserj.MicrobeamSession;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
@@ -39,12 +40,15 @@ public class Define_Home implements PlugInFilter {
 		cy = (int) gd.getNextNumber();
 		
 		// Initializes the microbeam
-		Microbeam microbeam = new Microbeam(Microbeam.CONFIG_FILENAME);
-		if (!microbeam.isSetupOK()) return;
+		Microbeam microbeam = MicrobeamSession.acquire();
+		try {
+			if (!microbeam.isSetupOK()) return;
 		
-		// set new home, and turn off mirror
-		microbeam.setNewMirrorHome(cx, cy);
-		microbeam.off();
+			// set new home, and turn off mirror
+			microbeam.setNewMirrorHome(cx, cy);
+		} finally {
+			MicrobeamSession.release(microbeam);
+		}
 	}
 
 }
@@ -0,0 +1,56 @@
+/* Name: Microbeam_Stats.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: This plugin shows where the time goes in microbeam jobs.
+ * For every command sent to the mirror controller and the shutter since the statistics were last reset, it
+ * lists the number of commands and the median, 99th percentile and maximum of their serial write time,
+ * reply latency, motion duration and queue wait, in ms. The statistics can optionally be reset afterwards.
+ */
+
+import ij.*;
+import ij.gui.*;
+import ij.plugin.*;
+import ij.text.TextWindow;
+
+import laserj.*;
+
+public class Microbeam_Stats implements PlugIn {
+
+	public void run(String arg) {
+		boolean reset = false;
+		GenericDialog gd = new GenericDialog("Microbeam Statistics");
+		gd.addMessage("Command timings recorded since the last reset.");
+		gd.addCheckbox("Reset statistics after showing them", reset);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		reset = gd.getNextBoolean();
+
+		String headings = "Command\tTiming\tCount\tp50 (ms)\tp99 (ms)\tmax (ms)\tmean (ms)";
+		StringBuilder rows = new StringBuilder();
+		for (String command : CommandStats.commands()) {
+			for (int metric = 0; metric < CommandStats.METRIC_NAMES.length; metric++) {
+				LatencyHistogram h = CommandStats.get(command, metric);
+				if (h.getCount() == 0) continue;
+				rows.append(command).append('\t')
+					.append(CommandStats.METRIC_NAMES[metric]).append('\t')
+					.append(h.getCount()).append('\t')
+					.append(IJ.d2s(h.percentile(50) / 1000.0, 3)).append('\t')
+					.append(IJ.d2s(h.percentile(99) / 1000.0, 3)).append('\t')
+					.append(IJ.d2s(h.getMax() / 1000.0, 3)).append('\t')
+					.append(IJ.d2s(h.getMean() / 1000.0, 3)).append('\n');
+			}
+		}
+		if (rows.length() == 0)
+			IJ.showMessage("Microbeam Statistics", "No commands recorded since the last reset.");
+		else
+			new TextWindow("Microbeam Statistics", headings, rows.toString(), 640, 400);
+
+		if (reset) {
+			CommandStats.reset();
+			IJ.log("MICROBEAM STATISTICS RESET");
+		}
+	}
+
+}
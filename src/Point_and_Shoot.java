@@ -20,6 +20,7 @@ import java.awt.*;
 import java.util.*;
 
 import laserj.*;
+import laserj.path.TourOptimizer;
 
 public class Point_and_Shoot implements PlugInFilter {
 
@@ -38,6 +39,7 @@ public class Point_and_Shoot implements PlugInFilter {
 	}
 
     public void run(ImageProcessor ip) {
+		double maxVelocity = 0.2;
 		int npts;
 		double[] x, y;
 		
@@ -66,10 +68,14 @@ public class Point_and_Shoot implements PlugInFilter {
 	    double reprate = 10;
 	   	int npulses = 1;
 		int zoom = 1;
+		boolean optimize = true;
+		int budget = 500;
 		GenericDialog gd = new GenericDialog("Experimental Parameters");
 		gd.addNumericField("Laser Repetition Rate (Hz): ", reprate, 0);
 		gd.addNumericField("Number of Ablation Pulses: ", npulses, 0);
 		gd.addNumericField("Digital Zoom of Image: ", zoom, 0);
+		gd.addCheckbox("Reorder points to minimize mirror travel", optimize);
+		gd.addNumericField("Time allowed for reordering (ms): ", budget, 0);
 		gd.addMessage("");
 		gd.addMessage("Check targeting on image. Cancel plugin if incorrect.");
 		gd.showDialog();
@@ -80,35 +86,77 @@ public class Point_and_Shoot implements PlugInFilter {
 		reprate = gd.getNextNumber();
 	   	npulses = (int) gd.getNextNumber();
 	   	zoom = (int) gd.getNextNumber();
+	   	optimize = gd.getNextBoolean();
+	   	budget = (int) gd.getNextNumber();
 	    double period = 1000 / reprate;	//period in ms
 	    int opentime = (int) ( period * (npulses-0.05) );
 
 		// Initializes the microbeam
-		Microbeam microbeam = new Microbeam(Microbeam.CONFIG_FILENAME);
-		if (!microbeam.isSetupOK()) return;
+		Microbeam microbeam = MicrobeamSession.acquire();
+		try {
+			if (!microbeam.isSetupOK()) return;
+			microbeam.selectProfile(imp, 0, zoom);
+			microbeam.setMirrorVelocity(maxVelocity);		// the shared microbeam keeps the velocity of the last plugin
 
-		/** LASER INCISION **/
-		// Iterate over each point, and make a point ablation
-		IJ.wait(500);
-		for (int i = 0; i < npts; i++) {
-			if (!win.running) break;
+			// Visit the points in the order that minimizes mirror travel, starting and ending at home
+			if (optimize && npts > 2) {
+				double[] xmm = new double[npts], ymm = new double[npts];
+				microbeam.toMirror(x, y, ip, zoom, xmm, ymm);
+				int[] naive = new int[npts];
+				for (int i = 0; i < npts; i++) naive[i] = i;
+				int[] order = TourOptimizer.order(xmm, ymm, 0, 0, budget);
+				MotionEstimator estimator = microbeam.getMotionEstimator();
+				IJ.log("Mirror travel in Results order: "+IJ.d2s(TourOptimizer.length(xmm, ymm, naive, 0, 0),3)+" mm, estimated "
+						+IJ.d2s(travelSeconds(estimator, xmm, ymm, naive),1)+" s");
+				IJ.log("Mirror travel in optimized order: "+IJ.d2s(TourOptimizer.length(xmm, ymm, order, 0, 0),3)+" mm, estimated "
+						+IJ.d2s(travelSeconds(estimator, xmm, ymm, order),1)+" s");
+				double[] xs = new double[npts], ys = new double[npts];
+				for (int i = 0; i < npts; i++) {
+					xs[i] = x[order[i]];
+					ys[i] = y[order[i]];
+				}
+				x = xs;
+				y = ys;
+			}
+
+			/** LASER INCISION **/
+			// Iterate over each point, and make a point ablation
+			for (int i = 0; i < npts; i++) {
+				if (!win.running) break;
 			
-			// move microbeam to position i
-			microbeam.moveToPIXELS(x[i], y[i], ip, zoom);
-			microbeam.openShutter();
-			IJ.wait(opentime);
-			microbeam.closeShutter();
+				// move microbeam to position i
+				microbeam.moveToPIXELS(x[i], y[i], ip, zoom);
+				microbeam.openShutter();
+				IJ.wait(opentime);
+				microbeam.closeShutter();
 			
-			// draw point of ablation on display image
-			ip.setColor(Color.white); ip.setLineWidth(3);		// set line width and color
-			ip.drawDot((int) x[i], (int) y[i]);
-			imp.updateAndDraw();
-		}
+				// draw point of ablation on display image
+				ip.setColor(Color.white); ip.setLineWidth(3);		// set line width and color
+				ip.drawDot((int) x[i], (int) y[i]);
+				imp.updateAndDraw();
+			}
 
-		// Moves microbeam to home and turns it off
-		microbeam.moveToMM(0.0, 0.0);
-		microbeam.off();
+			// Moves microbeam to home and releases it
+			microbeam.moveToMM(0.0, 0.0);
+		} finally {
+			MicrobeamSession.release(microbeam);
+		}
 		IJ.log("\nDONE\n");
 	}
 
+	/**
+	 * @return predicted time to move from home through the points in the given order and back, stopping at each, s
+	 */
+	private static double travelSeconds(MotionEstimator estimator, double[] x, double[] y, int[] order) {
+		double seconds = 0, cx = 0, cy = 0;
+		for (int k = 0; k <= order.length; k++) {
+			double nx = k < order.length ? x[order[k]] : 0;
+			double ny = k < order.length ? y[order[k]] : 0;
+			seconds += estimator.moveSeconds(Math.hypot(nx - cx, ny - cy));
+			cx = nx;
+			cy = ny;
+		}
+		return seconds;
+	}
+
 }
@@ -5,6 +5,7 @@
  * Author: Roger Zou
  * Date: 05/22/2015
  * Description: This plugin closes the shutter and returns the microbeam position to (0,0).
+ * It also turns off the microbeam that is kept open between plugin runs (see laserj.MicrobeamSession).
  */
 
 import ij.*;
@@ -15,22 +16,24 @@ import laserj.*;
 public class Reset_Microbeam implements PlugIn {
 
 	public void run(String arg) {
+		double maxVelocity = 0.2;
 		IJ.setColumnHeadings("");
 		IJ.log("\n\n\n@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n\nRESET_MICROBEAM"
 				+ "\n\n@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@\n\n\n");
 		
 		//Initializes the microbeam
-		Microbeam microbeam = new Microbeam(Microbeam.CONFIG_FILENAME);
-		if (!microbeam.isSetupOK())
-			return;
+		Microbeam microbeam = MicrobeamSession.acquire();
+		try {
+			if (!microbeam.isSetupOK())
+				return;
 
-		// close shutter, move to home, close microbeam.
-		IJ.wait(200);
-		microbeam.closeShutter();
-		IJ.wait(200);
-		microbeam.moveToMM(0.00,0.00);
-		IJ.wait(200);
-		microbeam.off();
+			// close shutter, move to home, turn microbeam off. Each step returns once the hardware has completed it.
+			microbeam.closeShutter();
+			microbeam.setMirrorVelocity(maxVelocity);
+			microbeam.moveToMM(0.00,0.00);
+		} finally {
+			MicrobeamSession.shutdown();	// also powers the mirror motors off and closes the ports
+		}
 		IJ.log("\nDONE\n");
 	}
 
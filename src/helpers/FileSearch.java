@@ -3,6 +3,11 @@ package helpers;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
 
 public class FileSearch {
 
@@ -30,4 +35,60 @@ public class FileSearch {
 		}
 	}
 
+	/**
+	 * Searches a directory tree one level at a time, listing the directories of each level in parallel,
+	 * and stops at the shallowest level that contains a match. Hidden directories are skipped.
+	 * @param directory root of the search
+	 * @param searchFile file name to look for, ignoring case
+	 * @param maxDepth deepest level searched, the root being level 0
+	 * @param maxDirectories give up after listing this many directories
+	 * @return matches found at the shallowest level, or an empty list
+	 */
+	public static List<String> searchBreadthFirst(File directory, final String searchFile, int maxDepth, int maxDirectories) {
+		List<String> foundFiles = new ArrayList<String>();
+		if (!directory.isDirectory()) {
+			System.out.println(directory.getAbsoluteFile() + " is not a directory.");
+			return foundFiles;
+		}
+		int nthreads = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+		ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+		try {
+			List<File> level = new ArrayList<File>();
+			level.add(directory);
+			int listed = 0;
+			for (int depth = 0; depth <= maxDepth && !level.isEmpty() && listed < maxDirectories; depth++) {
+				List<Future<File[]>> listings = new ArrayList<Future<File[]>>();
+				for (final File dir : level) {
+					if (listed++ >= maxDirectories) break;
+					listings.add(pool.submit(new Callable<File[]>() {
+						public File[] call() {
+							return dir.canRead() ? dir.listFiles() : null;
+						}
+					}));
+				}
+				List<File> next = new ArrayList<File>();
+				for (Future<File[]> listing : listings) {
+					File[] files = listing.get();
+					if (files == null) continue;
+					for (File tmp : files) {
+						if (tmp.isDirectory()) {
+							if (!tmp.isHidden()) next.add(tmp);
+						} else if (searchFile.equalsIgnoreCase(tmp.getName())) {
+							foundFiles.add(tmp.getAbsoluteFile().toString());
+						}
+					}
+				}
+				if (!foundFiles.isEmpty()) break;
+				level = next;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			System.out.println("Search of " + directory.getAbsoluteFile() + " failed: " + e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return foundFiles;
+	}
+
 }
@@ -0,0 +1,74 @@
+package laserj;
+
+/* Name: AbstractTransport.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Common buffering for transports.
+ * A transport either sends every write straight away, or coalesces writes in a buffer and sends them as one
+ * chunk once a line terminator (CR or LF) has been written or the buffer is full. Coalescing means a command
+ * that is written in pieces still costs one driver call, or one network packet.
+ */
+
+import java.io.IOException;
+
+public abstract class AbstractTransport implements Transport {
+
+	private final byte[] buffer;
+	private int count = 0;
+	private volatile Listener listener;
+
+	/**
+	 * @param coalesceSize size of the write buffer, or 0 to send every write immediately
+	 */
+	protected AbstractTransport(int coalesceSize) {
+		buffer = coalesceSize > 0 ? new byte[coalesceSize] : null;
+	}
+
+	/**
+	 * Sends bytes to the device immediately.
+	 */
+	protected abstract void send(byte[] data, int off, int len) throws IOException;
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Hands bytes received from the device to the listener.
+	 */
+	protected void deliver(byte[] data, int off, int len) {
+		Listener l = listener;
+		if (l != null && len > 0) l.received(data, off, len);
+	}
+
+	public synchronized void write(byte[] data, int off, int len) throws IOException {
+		if (buffer == null) {
+			send(data, off, len);
+			return;
+		}
+		if (count + len > buffer.length) {
+			flush();
+			if (len > buffer.length) {
+				send(data, off, len);
+				return;
+			}
+		}
+		System.arraycopy(data, off, buffer, count, len);
+		count += len;
+		byte last = data[off + len - 1];
+		if (last == '\r' || last == '\n') flush();
+	}
+
+	/**
+	 * Sends any coalesced bytes now.
+	 */
+	public synchronized void flush() throws IOException {
+		if (count == 0) return;
+		int n = count;
+		count = 0;
+		send(buffer, 0, n);
+	}
+
+}
@@ -0,0 +1,382 @@
+package laserj;
+
+/* Name: CommandBus.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Single-writer command bus to the mirror controller.
+ * One thread owns writing to the port: commands submitted from any thread are written in the order they were
+ * submitted. A command that expects a reply joins a FIFO of outstanding requests just before it is written.
+ * The ESP300 executes commands and answers queries in order, so each reply line normally answers the oldest
+ * outstanding request. Callers can therefore keep several queries in flight (position polls, error reads, moves)
+ * and wait for each result without an extra round trip.
+ * Replies are also matched by content. Each request expects a kind of reply: a status digit (HS?, MO?), a
+ * decimal number (TP, HV?), an error buffer entry (TB?) or the firmware version (VE?). A line that does not fit
+ * the oldest request goes to the first later request it fits. The requests skipped over are marked LOST, because
+ * their replies should have come first, so one lost reply does not shift every later reply onto the wrong request.
+ * The version query is used only as a probe (see probe()). Its reply therefore tells exactly which requests were
+ * sent before the probe and never answered.
+ * Commands are fixed slots from a pool. Each slot has its own CommandEncoder, which the writer hands to the port
+ * as is. The FIFOs are rings guarded by one monitor, so sending a command and waiting for its reply allocates
+ * nothing.
+ * Every command sent with a reply kind must produce exactly one reply line. Lines that fit no outstanding request
+ * are logged and dropped. Once a write fails, the port is closed and every outstanding and later request fails
+ * with the IOException.
+ */
+
+import java.io.IOException;
+
+public class CommandBus implements Transport.Listener {
+
+	/** Kinds of reply a command expects; NONE for commands the controller does not answer */
+	public static final int NONE = -1, ANY = 0, STATUS = 1, NUMBER = 2, ERROR = 3, VERSION = 4;
+
+	/** Reply of a request whose reply was lost; a device reply is never this instance */
+	public static final String LOST = new String("lost reply");
+
+	static final String PROBE = "VE?";		// asked by nothing but probe(), so its reply is recognized by content
+
+	private static final int POOL = 64;		// commands in flight or being built at once
+	private static final int FREE = 0, OWNED = 1, QUEUED = 2, SENT = 3, DONE = 4, CANCELLED = 5, FAILED = 6;
+
+	/**
+	 * A reusable command slot. Build the command in encoder(), send it, await its reply, then release it.
+	 */
+	public static final class Command {
+		private final CommandEncoder encoder;
+		private String type;
+		private int kind;
+		private int state = FREE;
+		private boolean release;			// return to the pool as soon as it is finished
+		private String reply;
+
+		Command(int capacity) {
+			encoder = new CommandEncoder(capacity);
+		}
+
+		public CommandEncoder encoder() {
+			return encoder;
+		}
+	}
+
+	private final Transport port;
+	private final ReplyBuffer lines;
+	private final Thread writer;
+	private final Object lock = new Object();
+	private IOException failure = null;		// guarded by lock, like everything below
+	private boolean closing = false;
+	private boolean probing = false;		// a probe is outstanding
+
+	private final Command[] free = new Command[POOL];
+	private int nfree = 0;
+	private final Command[] outgoing = new Command[POOL];
+	private int outHead = 0, outCount = 0;
+	private final Command[] pending = new Command[POOL];		// outstanding requests, oldest first
+	private int pendHead = 0, pendCount = 0;
+
+	/**
+	 * Takes over the port, including its listener.
+	 * @param replyCapacity longest expected reply line, in bytes
+	 */
+	public CommandBus(Transport port, int replyCapacity) {
+		this.port = port;
+		for (int i = 0; i < POOL; i++) free[nfree++] = new Command(64);
+		lines = new ReplyBuffer(replyCapacity) {
+			protected void lineReceived(String line) {
+				dispatch(line);
+			}
+		};
+		port.setListener(this);
+		writer = new Thread(port.getName()+" command bus") {
+			public void run() {
+				writeLoop();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @return an empty command slot, waiting for one to be released if all are in use
+	 */
+	public Command command() {
+		synchronized (lock) {
+			while (nfree == 0) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted waiting for a free command slot");
+				}
+			}
+			Command c = free[--nfree];
+			free[nfree] = null;
+			c.encoder.reset();
+			c.state = OWNED;
+			c.release = false;
+			c.reply = null;
+			return c;
+		}
+	}
+
+	/**
+	 * Queues the command built in c for writing, followed by a carriage return.
+	 * @param type command type for the statistics, e.g. "HL"
+	 * @param kind reply expected: STATUS, NUMBER, ERROR, VERSION, ANY, or NONE if there is none
+	 */
+	public void send(Command c, String type, int kind) {
+		c.encoder.append('\r');		// terminates the command
+		c.type = type;
+		c.kind = kind;
+		synchronized (lock) {
+			if (failure != null) {
+				finish(c, FAILED, null);
+				return;
+			}
+			c.state = QUEUED;
+			outgoing[(outHead + outCount++) % POOL] = c;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for the reply to a command.
+	 * @param timeout maximum time to wait, ms
+	 * @return the reply without its terminator, LOST, or null if it did not arrive in time or was given up
+	 * @throws IOException if writing to the port failed
+	 */
+	public String await(Command c, long timeout) throws IOException {
+		long end = System.nanoTime() + timeout * 1000000L;
+		synchronized (lock) {
+			while (c.state == QUEUED || c.state == SENT) {
+				long left = end - System.nanoTime();
+				if (left <= 0) return null;
+				try {
+					lock.wait(Math.max(1L, left / 1000000L));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+			if (c.state == FAILED) throw failure;
+			return c.state == DONE ? c.reply : null;
+		}
+	}
+
+	/**
+	 * @return true while the command is waiting to be written or for its reply
+	 */
+	public boolean isPending(Command c) {
+		synchronized (lock) {
+			return c.state == QUEUED || c.state == SENT;
+		}
+	}
+
+	/**
+	 * Hands a command back to the pool. One still in flight goes back once it is finished.
+	 */
+	public void release(Command c) {
+		synchronized (lock) {
+			if (c.state == QUEUED || c.state == SENT) c.release = true;
+			else free(c);
+		}
+	}
+
+	/**
+	 * Sends a command line that produces no reply.
+	 */
+	public void write(String msg) {
+		Command c = command();
+		c.encoder.append(msg);
+		c.release = true;
+		send(c, CommandStats.mnemonic(msg), NONE);
+	}
+
+	/**
+	 * Sends the probe query, unless one is already outstanding. Its reply comes once the controller has
+	 * executed everything sent before it, and marks every earlier request still unanswered as LOST.
+	 */
+	public void probe() {
+		synchronized (lock) {
+			if (probing) return;
+			probing = true;
+		}
+		Command c = command();
+		c.encoder.append(PROBE);
+		c.release = true;
+		send(c, "VE", VERSION);
+	}
+
+	/**
+	 * @return the kind of reply the last command of a line produces
+	 */
+	static int replyKind(String msg) {
+		int i = msg.lastIndexOf(';') + 1, n = msg.length();
+		while (i < n && (Character.isDigit(msg.charAt(i)) || msg.charAt(i) == ' ')) i++;
+		if (msg.startsWith("HS", i) || msg.startsWith("MO?", i)) return STATUS;
+		if (msg.startsWith("TP", i) || msg.startsWith("HV?", i) || msg.startsWith("HA?", i) || msg.startsWith("HD?", i)) return NUMBER;
+		if (msg.startsWith("TB", i)) return ERROR;
+		if (msg.startsWith("VE", i)) return VERSION;
+		return ANY;
+	}
+
+	private static boolean fits(int kind, String line) {
+		switch (kind) {
+		case STATUS: return line.length() == 1 && Character.isDigit(line.charAt(0));
+		case NUMBER: return line.indexOf('.') >= 0 && line.indexOf(',') < 0;
+		case ERROR: return line.indexOf(',') > 0 && Character.isDigit(line.charAt(0));
+		case VERSION: return line.indexOf("ersion") >= 0 || line.startsWith("ESP");
+		default: return true;
+		}
+	}
+
+	private void writeLoop() {
+		while (true) {
+			Command c;
+			synchronized (lock) {
+				while (outCount == 0 && !closing) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (outCount == 0) return;		// closing, and everything submitted has been written
+				c = outgoing[outHead];
+				outgoing[outHead] = null;
+				outHead = (outHead + 1) % POOL;
+				outCount--;
+				if (failure != null) {
+					finish(c, FAILED, null);
+					continue;
+				}
+				c.state = SENT;
+				if (c.kind != NONE) pending[(pendHead + pendCount++) % POOL] = c;	// before writing, so the reply cannot overtake it
+			}
+			if (Log.TRACE && Log.enabled(Log.DEBUG)) Log.debug("\tSend: \t" + c.encoder.toString().trim());
+			try {
+				long t0 = System.nanoTime();
+				port.write(c.encoder.array(), 0, c.encoder.length());
+				CommandStats.record(c.type, CommandStats.WRITE, System.nanoTime() - t0);
+				if (c.kind == NONE) {
+					synchronized (lock) {
+						finish(c, DONE, "");
+					}
+				}
+			} catch (IOException e) {
+				port.close();
+				synchronized (lock) {
+					failure = e;
+					if (c.kind == NONE) finish(c, FAILED, null);
+					while (pendCount > 0) finish(pollPending(), FAILED, null);
+				}
+			}
+		}
+	}
+
+	public void received(byte[] data, int off, int len) {
+		lines.put(data, off, len);	// dispatches each complete CR/LF-terminated line
+	}
+
+	// On the thread that receives the bytes
+	private void dispatch(String line) {
+		synchronized (lock) {
+			int k = 0;
+			while (k < pendCount && !fits(pending[(pendHead + k) % POOL].kind, line)) k++;
+			if (k == pendCount) {
+				Log.warn("Unexpected reply from "+port.getName()+": "+line);
+				return;
+			}
+			if (k > 0) Log.warn(k+" repl"+(k == 1 ? "y" : "ies")+" from "+port.getName()+" lost before: "+line);
+			for (int i = 0; i < k; i++) finish(pollPending(), DONE, LOST);
+			Command c = pollPending();
+			if (c.kind == VERSION) probing = false;
+			finish(c, DONE, line);
+		}
+	}
+
+	private Command pollPending() {
+		Command c = pending[pendHead];
+		pending[pendHead] = null;
+		pendHead = (pendHead + 1) % POOL;
+		pendCount--;
+		return c;
+	}
+
+	// Called holding lock
+	private void finish(Command c, int state, String reply) {
+		c.state = state;
+		c.reply = reply;
+		if (c.release) free(c);
+		lock.notifyAll();
+	}
+
+	private void free(Command c) {
+		c.state = FREE;
+		free[nfree++] = c;
+		lock.notifyAll();
+	}
+
+	/**
+	 * Stops waiting for the reply to an outstanding request, so that a reply arriving later is matched to a
+	 * later request instead, if it fits one.
+	 * @return true if the request was still outstanding
+	 */
+	public boolean forget(Command c) {
+		synchronized (lock) {
+			for (int k = 0; k < pendCount; k++) {
+				if (pending[(pendHead + k) % POOL] != c) continue;
+				for (int j = k; j < pendCount - 1; j++)
+					pending[(pendHead + j) % POOL] = pending[(pendHead + j + 1) % POOL];
+				pending[(pendHead + --pendCount) % POOL] = null;
+				if (c.kind == VERSION) probing = false;
+				finish(c, CANCELLED, null);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Cancels every outstanding request, for when the controller has stopped answering.
+	 */
+	public void reset() {
+		synchronized (lock) {
+			while (pendCount > 0) finish(pollPending(), CANCELLED, null);
+			probing = false;
+		}
+	}
+
+	/**
+	 * @return true once a write has failed and the port has been closed
+	 */
+	public boolean isFailed() {
+		synchronized (lock) {
+			return failure != null;
+		}
+	}
+
+	/**
+	 * Writes the commands already submitted, then closes the port.
+	 */
+	public void close() {
+		synchronized (lock) {
+			closing = true;
+			lock.notifyAll();
+		}
+		try {
+			writer.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		writer.interrupt();
+		port.close();
+		reset();
+	}
+
+	public String getName() {
+		return port.getName();
+	}
+
+}
@@ -0,0 +1,137 @@
+package laserj;
+
+/* Name: CommandEncoder.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Builds ESP300 commands as ASCII bytes in a reusable buffer.
+ * Mnemonics, integers, fixed-precision decimals and separators are written straight into a byte array. Each
+ * CommandBus command slot owns an encoder, and the bus writer thread passes its array to the port as is, without
+ * copying. Building a command allocates nothing once the buffer has grown to the longest command sent, so
+ * streaming a long path produces no garbage per segment. Decimals are
+ * rounded half up, which matches IJ.d2s except for values exactly halfway between two roundings.
+ * toString() is meant for logging.
+ */
+
+import java.util.Arrays;
+
+import laserj.path.Trajectory;
+
+public class CommandEncoder {
+
+	private static final int MAX_DECIMALS = 9;
+	private static final long[] POWERS = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L};
+	private static final int COORDINATE_DECIMALS = 6;
+
+	private byte[] buf;
+	private int len = 0;
+
+	public CommandEncoder(int capacity) {
+		buf = new byte[Math.max(capacity, 16)];
+	}
+
+	public CommandEncoder reset() {
+		len = 0;
+		return this;
+	}
+
+	public byte[] array() { return buf; }
+	public int length() { return len; }
+
+	public CommandEncoder append(char c) {
+		ensure(1);
+		buf[len++] = (byte) c;
+		return this;
+	}
+
+	/**
+	 * Appends an ASCII string, e.g. a mnemonic or a separator.
+	 */
+	public CommandEncoder append(String s) {
+		int n = s.length();
+		ensure(n);
+		for (int i = 0; i < n; i++)
+			buf[len++] = (byte) s.charAt(i);
+		return this;
+	}
+
+	public CommandEncoder append(long v) {
+		if (v < 0) {
+			if (v == Long.MIN_VALUE) return append(String.valueOf(v));
+			append('-');
+			v = -v;
+		}
+		int digits = 1;
+		for (long p = v; p >= 10; p /= 10) digits++;
+		ensure(digits);
+		for (int i = len + digits - 1; i >= len; i--) {
+			buf[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		len += digits;
+		return this;
+	}
+
+	/**
+	 * Appends a decimal with a fixed number of digits after the point, e.g. "-0.012500" for 6 decimals.
+	 */
+	public CommandEncoder append(double v, int decimals) {
+		if (decimals < 0 || decimals > MAX_DECIMALS)
+			throw new IllegalArgumentException("decimals must be 0 to "+MAX_DECIMALS+": "+decimals);
+		long scale = POWERS[decimals];
+		double scaled = Math.abs(v) * scale;
+		if (Double.isNaN(v) || scaled >= Long.MAX_VALUE)		// never a valid mirror position
+			return append(String.valueOf(v));
+		long units = Math.round(scaled);
+		if (v < 0 && units != 0) append('-');
+		append(units / scale);
+		if (decimals > 0) {
+			append('.');
+			long frac = units % scale;
+			ensure(decimals);
+			for (long p = scale / 10; p > 0; p /= 10) {
+				buf[len++] = (byte) ('0' + frac / p);
+				frac %= p;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Appends "1HLx,y", a group 1 line to the given point in mm.
+	 */
+	public CommandEncoder line(double x, double y) {
+		return append("1HL").append(x, COORDINATE_DECIMALS).append(',').append(y, COORDINATE_DECIMALS);
+	}
+
+	/**
+	 * Appends "1HCcx,cy,degrees", a group 1 arc around the given center in mm.
+	 */
+	public CommandEncoder arc(double cx, double cy, double degrees) {
+		return append("1HC").append(cx, COORDINATE_DECIMALS).append(',').append(cy, COORDINATE_DECIMALS)
+				.append(',').append(degrees, COORDINATE_DECIMALS);
+	}
+
+	/**
+	 * Appends segment i of a path: a line to its end point, or an arc around its center.
+	 */
+	public CommandEncoder segment(Trajectory path, int i) {
+		if (path.getType(i) == Trajectory.ARC)
+			return arc(path.getCenterX(i), path.getCenterY(i), path.getDegrees(i));
+		return line(path.getX(i), path.getY(i));
+	}
+
+	private void ensure(int n) {
+		if (len + n > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(2 * buf.length, len + n));
+	}
+
+	public String toString() {
+		char[] chars = new char[len];
+		for (int i = 0; i < len; i++)
+			chars[i] = (char) (buf[i] & 0xFF);
+		return new String(chars);
+	}
+
+}
@@ -0,0 +1,79 @@
+package laserj;
+
+/* Name: CommandStats.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Timing statistics for the commands sent to the mirror controller and the shutter.
+ * For every command type (HL, HC, HV, shutter OPEN/CLOSE, ...) four kinds of duration are kept, each in its own
+ * LatencyHistogram:
+ *   WRITE   time spent writing the command to the serial port
+ *   REPLY   time from sending the command to its reply
+ *   MOTION  time from the write until the commanded motion is complete
+ *   QUEUE   time spent waiting for room in the controller's trajectory buffer while streaming
+ * The statistics are shown and reset by the Microbeam_Stats plugin.
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class CommandStats {
+
+	public static final int WRITE = 0, REPLY = 1, MOTION = 2, QUEUE = 3;
+	public static final String[] METRIC_NAMES = {"write", "reply", "motion", "queue wait"};
+
+	private static final ConcurrentHashMap<String, LatencyHistogram[]> stats = new ConcurrentHashMap<String, LatencyHistogram[]>();
+
+	private CommandStats() { }
+
+	/**
+	 * @param command command type, e.g. "HL"
+	 * @param metric WRITE, REPLY, MOTION or QUEUE
+	 * @param nanos duration measured with System.nanoTime()
+	 */
+	public static void record(String command, int metric, long nanos) {
+		histograms(command)[metric].recordNanos(nanos);
+	}
+
+	public static LatencyHistogram get(String command, int metric) {
+		return histograms(command)[metric];
+	}
+
+	private static LatencyHistogram[] histograms(String command) {
+		LatencyHistogram[] h = stats.get(command);
+		if (h == null) {
+			h = new LatencyHistogram[METRIC_NAMES.length];
+			for (int i = 0; i < h.length; i++) h[i] = new LatencyHistogram();
+			LatencyHistogram[] prev = stats.putIfAbsent(command, h);
+			if (prev != null) h = prev;
+		}
+		return h;
+	}
+
+	/**
+	 * @return the command types recorded so far, in alphabetical order
+	 */
+	public static List<String> commands() {
+		List<String> names = new ArrayList<String>(stats.keySet());
+		Collections.sort(names);
+		return names;
+	}
+
+	public static void reset() {
+		for (LatencyHistogram[] h : stats.values())
+			for (int i = 0; i < h.length; i++) h[i].reset();
+	}
+
+	/**
+	 * Extracts the command type from an ESP300 message, e.g. "HL" from "1HL0.1,0.2;1HW".
+	 */
+	static String mnemonic(String msg) {
+		int i = 0, n = msg.length();
+		while (i < n && (Character.isDigit(msg.charAt(i)) || msg.charAt(i) == ' ')) i++;
+		int start = i;
+		while (i < n && Character.isLetter(msg.charAt(i)) && i - start < 2) i++;
+		return i > start ? msg.substring(start, i).toUpperCase() : "?";
+	}
+
+}
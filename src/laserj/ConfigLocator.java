@@ -0,0 +1,112 @@
+package laserj;
+
+/* Name: ConfigLocator.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Finds the microbeam config file without walking the whole MicroManager install.
+ * Locations are tried from cheapest to most expensive:
+ * 1. the path given by the system property "microbeam.config",
+ * 2. the path found last time, remembered in the ImageJ preferences, as long as the file's modification time is unchanged,
+ * 3. the folder the laserj classes were loaded from, and its parent,
+ * 4. the ImageJ plugins folder and its immediate subfolders,
+ * 5. a bounded breadth-first search of the working directory.
+ */
+
+import java.io.File;
+import java.net.URL;
+import java.util.List;
+
+import helpers.FileSearch;
+import ij.*;
+
+class ConfigLocator {
+
+	static final String PATH_PROPERTY = "microbeam.config";
+	private static final String PREF_PATH = "microbeam.config.path";
+	private static final String PREF_MTIME = "microbeam.config.mtime";
+
+	private static final int SEARCH_DEPTH = 4;			// levels below the working directory
+	private static final int SEARCH_DIRECTORIES = 5000;	// directories listed before giving up
+
+	private ConfigLocator() { }
+
+	/**
+	 * @param filename name of the config file
+	 * @return absolute path of the config file, or null if it was not found
+	 */
+	static String locate(String filename) {
+		String explicit = System.getProperty(PATH_PROPERTY);
+		if (explicit != null) {
+			File f = new File(explicit);
+			if (f.isFile()) return remember(f);
+			Log.warn("Microbeam config given by -D"+PATH_PROPERTY+" not found: "+explicit);
+		}
+
+		String cached = Prefs.get(PREF_PATH, null);
+		if (cached != null) {
+			File f = new File(cached);
+			if (f.isFile() && f.getName().equalsIgnoreCase(filename)
+					&& Long.toString(f.lastModified()).equals(Prefs.get(PREF_MTIME, "")))
+				return f.getAbsolutePath();
+		}
+
+		File classDir = classDirectory();
+		if (classDir != null) {
+			File found = findIn(classDir, filename, false);
+			if (found == null && classDir.getParentFile() != null)
+				found = findIn(classDir.getParentFile(), filename, false);
+			if (found != null) return remember(found);
+		}
+
+		String plugins = Menus.getPlugInsPath();
+		if (plugins != null) {
+			File found = findIn(new File(plugins), filename, true);
+			if (found != null) return remember(found);
+		}
+
+		Log.info("Searching "+System.getProperty("user.dir")+" for "+filename);
+		List<String> results = FileSearch.searchBreadthFirst(new File(System.getProperty("user.dir")), filename, SEARCH_DEPTH, SEARCH_DIRECTORIES);
+		if (results.size() > 0) return remember(new File(results.get(0)));
+		return null;
+	}
+
+	/**
+	 * Records the location of the config file so the next lookup can skip the search.
+	 */
+	static String remember(File f) {
+		Prefs.set(PREF_PATH, f.getAbsolutePath());
+		Prefs.set(PREF_MTIME, Long.toString(f.lastModified()));
+		return f.getAbsolutePath();
+	}
+
+	// Looks for the file directly in dir, and optionally in its immediate subfolders
+	private static File findIn(File dir, String filename, boolean subfolders) {
+		File f = new File(dir, filename);
+		if (f.isFile()) return f;
+		if (subfolders) {
+			File[] children = dir.listFiles();
+			if (children == null) return null;
+			for (File child : children) {
+				if (!child.isDirectory()) continue;
+				f = new File(child, filename);
+				if (f.isFile()) return f;
+			}
+		}
+		return null;
+	}
+
+	// The folder holding the laserj package, e.g. plugins/LaserMicrosurgeryEXE
+	private static File classDirectory() {
+		URL url = ConfigLocator.class.getResource("ConfigLocator.class");
+		if (url == null || !"file".equals(url.getProtocol())) return null;
+		try {
+			File laserjDir = new File(url.toURI()).getParentFile();
+			return laserjDir == null ? null : laserjDir.getParentFile();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+}
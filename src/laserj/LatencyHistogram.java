@@ -0,0 +1,102 @@
+package laserj;
+
+/* Name: LatencyHistogram.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Fixed-memory histogram of durations, in the style of HdrHistogram.
+ * Values are recorded in microseconds into log-linear buckets: every power of two is split into SUB_BUCKETS/2
+ * equal buckets, so any recorded value is reported to within about 3% whatever its magnitude. Recording is a few
+ * atomic increments and never allocates, so it is safe to call from the motion loop and from several threads.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;		// 32
+	private static final int HALF = SUB_BUCKETS / 2;
+	private static final int MAX_SHIFT = 36;					// values up to ~2^41 us (25 days)
+	private static final int NBUCKETS = SUB_BUCKETS + MAX_SHIFT * HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NBUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos duration in ns, as measured with System.nanoTime()
+	 */
+	public void recordNanos(long nanos) {
+		record(nanos / 1000L);
+	}
+
+	/**
+	 * @param micros duration in microseconds
+	 */
+	public void record(long micros) {
+		if (micros < 0) micros = 0;
+		counts.incrementAndGet(index(micros));
+		count.incrementAndGet();
+		total.addAndGet(micros);
+		long m;
+		while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) { }
+	}
+
+	private static int index(long v) {
+		if (v < SUB_BUCKETS) return (int) v;
+		int exp = 63 - Long.numberOfLeadingZeros(v);
+		int shift = exp - SUB_BITS + 1;
+		if (shift > MAX_SHIFT) return NBUCKETS - 1;
+		int sub = (int) (v >> shift);				// in [HALF, SUB_BUCKETS)
+		return SUB_BUCKETS + (shift - 1) * HALF + (sub - HALF);
+	}
+
+	// Midpoint of the range of values that fall in bucket i
+	private static long value(int i) {
+		if (i < SUB_BUCKETS) return i;
+		int shift = (i - SUB_BUCKETS) / HALF + 1;
+		long sub = (i - SUB_BUCKETS) % HALF + HALF;
+		return (sub << shift) + (1L << (shift - 1));
+	}
+
+	/**
+	 * @param p percentile between 0 and 100
+	 * @return the recorded value at that percentile in microseconds, or 0 if nothing was recorded
+	 */
+	public long percentile(double p) {
+		long n = count.get();
+		if (n == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < NBUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) return Math.min(value(i), max.get());
+		}
+		return max.get();
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) total.get() / n;
+	}
+
+	public void reset() {
+		for (int i = 0; i < NBUCKETS; i++) counts.set(i, 0);
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+}
@@ -0,0 +1,154 @@
+package laserj;
+
+/* Name: Log.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Non-blocking log for the microbeam classes.
+ * Writing to the ImageJ Log window is synchronous and slows down as the window grows, so the mirror, shutter
+ * and microbeam never call IJ.log on the motion thread. Messages are instead placed in a lock-free ring buffer
+ * and a background thread flushes them to the Log window in batches, and optionally appends them to a file.
+ * Messages below the current level are dropped before they are formatted, and per-command tracing can be
+ * compiled out entirely by setting TRACE to false.
+ *
+ * Settings (Java system properties):
+ *   microbeam.log.level  DEBUG, INFO, WARN, ERROR or OFF (default INFO)
+ *   microbeam.log.file   path of a file that also receives every message (default none)
+ */
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import ij.*;
+
+public final class Log {
+
+	public static final int DEBUG = 0, INFO = 1, WARN = 2, ERROR = 3, OFF = 4;
+	private static final String[] LEVEL_NAMES = {"DEBUG", "INFO", "WARN", "ERROR", "OFF"};
+
+	/** Guards per-command trace logging; set to false to compile it out of the motion loop. */
+	public static final boolean TRACE = true;
+
+	private static final int CAPACITY = 4096;			// messages held before new ones are dropped
+	private static final int MASK = CAPACITY - 1;
+	private static final long FLUSH_INTERVAL = 100L;	// ms between flushes to the Log window
+
+	private static final AtomicReferenceArray<String> slots = new AtomicReferenceArray<String>(CAPACITY);
+	private static final AtomicLong head = new AtomicLong();	// next slot to claim
+	private static final AtomicLong tail = new AtomicLong();	// next slot to flush
+	private static final AtomicLong dropped = new AtomicLong();
+
+	private static volatile int level = parseLevel(System.getProperty("microbeam.log.level"), INFO);
+	private static PrintWriter file = openFile(System.getProperty("microbeam.log.file"));
+	private static final StringBuilder batch = new StringBuilder();
+
+	static {
+		Thread flusher = new Thread("Microbeam log") {
+			public void run() {
+				while (true) {
+					LockSupport.parkNanos(FLUSH_INTERVAL * 1000000L);
+					flush();
+				}
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	private Log() { }
+
+	public static boolean enabled(int lvl) {
+		return lvl >= level;
+	}
+
+	public static void setLevel(int lvl) {
+		level = lvl;
+	}
+
+	public static int getLevel() {
+		return level;
+	}
+
+	public static void debug(String msg) { log(DEBUG, msg); }
+	public static void info(String msg) { log(INFO, msg); }
+	public static void warn(String msg) { log(WARN, msg); }
+	public static void error(String msg) { log(ERROR, msg); }
+
+	/**
+	 * Queues a message without blocking. If the buffer is full the message is dropped and counted.
+	 */
+	public static void log(int lvl, String msg) {
+		if (lvl < level) return;
+		if (lvl >= WARN) msg = LEVEL_NAMES[lvl] + ": " + msg;
+		long seq;
+		do {
+			seq = head.get();
+			if (seq - tail.get() >= CAPACITY) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!head.compareAndSet(seq, seq + 1));
+		slots.lazySet((int) (seq & MASK), msg);
+	}
+
+	/**
+	 * Writes all queued messages to the Log window (and file) now.
+	 * Called periodically by the background thread; callers may also use it to order
+	 * microbeam messages before their own IJ.log output.
+	 */
+	public static synchronized void flush() {
+		batch.setLength(0);
+		long t = tail.get();
+		while (true) {
+			int idx = (int) (t & MASK);
+			String msg = slots.get(idx);
+			if (msg == null) break;		// not yet published
+			slots.lazySet(idx, null);
+			t++;
+			tail.lazySet(t);
+			if (batch.length() > 0) batch.append('\n');
+			batch.append(msg);
+		}
+		long lost = dropped.getAndSet(0);
+		if (lost > 0) {
+			if (batch.length() > 0) batch.append('\n');
+			batch.append("WARN: ").append(lost).append(" microbeam log messages dropped");
+		}
+		if (batch.length() == 0) return;
+		String text = batch.toString();
+		IJ.log(text);
+		if (file != null) {
+			file.println(text);
+			file.flush();
+		}
+	}
+
+	/**
+	 * Also appends every message to the given file, or stops doing so if path is null.
+	 */
+	public static synchronized void setFile(String path) {
+		if (file != null) file.close();
+		file = openFile(path);
+	}
+
+	private static PrintWriter openFile(String path) {
+		if (path == null || path.length() == 0) return null;
+		try {
+			return new PrintWriter(new BufferedWriter(new FileWriter(path, true)));
+		} catch (IOException e) {
+			IJ.log("Cannot open microbeam log file "+path+": "+e.getMessage());
+			return null;
+		}
+	}
+
+	private static int parseLevel(String name, int def) {
+		if (name == null) return def;
+		for (int i = 0; i < LEVEL_NAMES.length; i++)
+			if (LEVEL_NAMES[i].equalsIgnoreCase(name.trim())) return i;
+		return def;
+	}
+
+}
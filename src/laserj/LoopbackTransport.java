@@ -0,0 +1,98 @@
+package laserj;
+
+/* Name: LoopbackTransport.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: In-memory transport between two ends in the same process.
+ * Bytes written to one end are handed, in order, to the listener of the other end on a delivery thread, so
+ * either side may write from inside its listener. Nothing is buffered or coalesced on the way.
+ * Ends are looked up by name: the host side opens "loop:<name>" through Transports.open(), and a stand-in
+ * device takes the other end with LoopbackTransport.device(name).
+ */
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class LoopbackTransport extends AbstractTransport {
+
+	private static final Map<String, LoopbackTransport[]> pairs = new HashMap<String, LoopbackTransport[]>();
+
+	private final String name;
+	private LoopbackTransport peer;
+	private final BlockingQueue<byte[]> inbox = new LinkedBlockingQueue<byte[]>();
+	private volatile boolean closed = false;
+	private final Thread delivery;
+
+	private LoopbackTransport(String name) {
+		super(0);
+		this.name = name;
+		delivery = new Thread("Loopback delivery " + name) {
+			public void run() {
+				try {
+					while (!closed) {
+						byte[] data = inbox.take();
+						deliver(data, 0, data.length);
+					}
+				} catch (InterruptedException e) { }
+			}
+		};
+		delivery.setDaemon(true);
+		delivery.start();
+	}
+
+	/**
+	 * @return two connected ends
+	 */
+	public static LoopbackTransport[] pair(String name) {
+		LoopbackTransport a = new LoopbackTransport(name);
+		LoopbackTransport b = new LoopbackTransport(name);
+		a.peer = b;
+		b.peer = a;
+		return new LoopbackTransport[] {a, b};
+	}
+
+	/**
+	 * @return the host end of the named pair, creating the pair if needed
+	 */
+	static LoopbackTransport host(String name) {
+		return named(name)[0];
+	}
+
+	/**
+	 * @return the device end of the named pair, creating the pair if needed
+	 */
+	public static LoopbackTransport device(String name) {
+		return named(name)[1];
+	}
+
+	private static synchronized LoopbackTransport[] named(String name) {
+		LoopbackTransport[] p = pairs.get(name);
+		if (p == null || p[0].closed || p[1].closed) {
+			p = pair(name);
+			pairs.put(name, p);
+		}
+		return p;
+	}
+
+	protected void send(byte[] data, int off, int len) throws IOException {
+		if (closed || peer.closed) throw new IOException("loop:"+name+" is closed");
+		byte[] copy = new byte[len];
+		System.arraycopy(data, off, copy, 0, len);
+		peer.inbox.offer(copy);
+	}
+
+	public void close() {
+		closed = true;
+		delivery.interrupt();
+	}
+
+	public String getName() {
+		return "loop:" + name;
+	}
+
+}
@@ -13,21 +13,24 @@ package laserj;
  */
 
 import java.util.*;
+import java.util.function.BooleanSupplier;
 import java.io.*;
 
-import helpers.FileSearch;
 import ij.*;
 import ij.gui.*;
 import ij.process.*;
+import laserj.calib.*;
+import laserj.path.*;
 
 public class Microbeam {
 
 	/** SETTINGS TO CONFIGURE **/
     public static final String CONFIG_FILENAME = "Microbeam.txt";
-    private static final long timeOut = 30000L;	// 30 second delay
     
+    private String configfilepath;
     private String mr_port, sh_port;
-    private double microns_per_pixel, cal1X, cal1Y, cal2X, cal2Y;
+    private transient PixelTransform transform;	// calibration compiled for the last image size and zoom used
+    private String profileName;					// calibration profile in use, or null for the default calibration
     private transient Mirror mirror;
     private transient Shutter shutter;
     private boolean setupOK;
@@ -36,76 +39,184 @@ public class Microbeam {
     public Microbeam(String configfilename) {
 		setupOK = true;
 		
-		// Search for microbeam config file inside current directory
-    	File curdir = new File(System.getProperty("user.dir"));
-		List<String> results = FileSearch.searchDirectory(curdir, configfilename);
-		String configfilepath;
-		if (results.size() > 0) {
-			configfilepath = results.get(0);
-		} else {
+		// Find microbeam config file, checking well-known locations before searching
+		String configfilepath = ConfigLocator.locate(configfilename);
+		if (configfilepath == null) {
 			setupOK = false;
 			throw new IllegalArgumentException("Microbeam config file not found.");
 		}
+		this.configfilepath = configfilepath;
 
-		// Load the file into file reader to parse
-		BufferedReader config;
+		// Load the configuration, parsed once and kept current as the file changes
+		MicrobeamConfig config;
 		try {
-			config = new BufferedReader(new FileReader(configfilepath));
-		} catch (FileNotFoundException e) {
+			config = MicrobeamConfig.load(configfilepath);
+		} catch (IllegalArgumentException e) {
 			setupOK = false;
-			throw new IllegalArgumentException("Microbeam config file not found.");
-		}
-		try {
-			mr_port = new StringTokenizer(config.readLine()).nextToken();
-			sh_port = new StringTokenizer(config.readLine()).nextToken();
-			microns_per_pixel = Double.parseDouble(new StringTokenizer(config.readLine()).nextToken());
-			cal1X = Double.parseDouble(new StringTokenizer(config.readLine()).nextToken());
-			cal1Y = Double.parseDouble(new StringTokenizer(config.readLine()).nextToken());
-			cal2X = Double.parseDouble(new StringTokenizer(config.readLine()).nextToken());
-			cal2Y = Double.parseDouble(new StringTokenizer(config.readLine()).nextToken());
-			config.close();
-		} catch (IOException e) {
-			setupOK = false;
-			throw new IllegalArgumentException("Error reading microbeam config file.");
-		} catch (NumberFormatException e) {
-			setupOK = false;
-			throw new IllegalArgumentException("Microbeam config file is not formatted properly.");
+			throw e;
 		}
+		mr_port = config.getMirrorPort();
+		sh_port = config.getShutterPort();
 		
 		// Initialize shutter and mirror
-		shutter = new Shutter(sh_port);
-		mirror = new Mirror(mr_port, timeOut);
+		shutter = new Shutter(sh_port, config.getShutterSettle());
+		mirror = new Mirror(mr_port, config.getTimeoutMargin());
     }
 
     public void moveToPIXELS(double xpix, double ypix, ImageProcessor ip, int zoom) {
-		IJ.log("MOVING MICROBEAM TO POSITION (PIXELS): "+IJ.d2s(xpix,0)+", "+IJ.d2s(ypix,0));
-		int w = ip.getWidth();
-		int h = ip.getHeight();
-		double axis1 = (xpix - w/2)*cal1X / zoom + (ypix - h/2)*cal1Y / zoom;
-		double axis2 = (xpix - w/2)*cal2X / zoom + (ypix - h/2)*cal2Y / zoom;
-		mirror.moveTo(axis1, axis2);
+		if (Log.TRACE) Log.debug("MOVING MICROBEAM TO POSITION (PIXELS): "+IJ.d2s(xpix,0)+", "+IJ.d2s(ypix,0));
+		PixelTransform t = getTransform(ip, zoom);
+		mirror.moveTo(t.axis1(xpix, ypix), t.axis2(xpix, ypix));
+    }
+
+    /**
+     * Traces a path of pixel positions as one continuous motion, without stopping at each vertex.
+     * The first vertex is the start of the path, where the microbeam should already be.
+     */
+    public void streamPIXELS(double[] xpix, double[] ypix, ImageProcessor ip, int zoom) {
+		streamPath(compilePIXELS(xpix, ypix, ip, zoom, 0));
+    }
+
+    /**
+     * Traces a path of pixel positions like streamPIXELS, but from a program stored on the controller.
+     * Only the first run of a given path is sent over the serial port; use this for repeated incisions.
+     */
+    public void programPIXELS(double[] xpix, double[] ypix, ImageProcessor ip, int zoom) {
+		programPath(compilePIXELS(xpix, ypix, ip, zoom, 0));
+    }
+
+    /**
+     * Converts a path of pixel positions into mirror lines and arcs.
+     * Runs of vertices that lie within arcTolerance of a circular arc are traced as a single ESP300 arc.
+     * @param xpix x positions of the vertices, the first being the start of the path
+     * @param ypix y positions of the vertices
+     * @param arcTolerance in pixels, or 0 for straight lines only
+     */
+    public Trajectory compilePIXELS(double[] xpix, double[] ypix, ImageProcessor ip, int zoom, double arcTolerance) {
+		int n = xpix.length;
+		double[] axis1 = new double[n];
+		double[] axis2 = new double[n];
+		toMirror(xpix, ypix, ip, zoom, axis1, axis2);
+		if (arcTolerance <= 0)
+			return Trajectory.lines(axis1, axis2, n);
+		double mmPerPixel = get_calibration_model().getScale() / get_calibration_zoom(zoom);
+		return ArcFitter.fit(axis1, axis2, arcTolerance * mmPerPixel);
+    }
+
+    /**
+     * Traces a compiled path as one continuous motion. The microbeam should already be at its start.
+     */
+    public void streamPath(Trajectory path) {
+		Log.info("STREAMING MICROBEAM ALONG PATH OF "+path.size()+" SEGMENTS ("+path.countArcs()+" ARCS)");
+		mirror.streamTo(path);
+    }
+
+    /**
+     * Traces a compiled path from a program stored on the controller.
+     */
+    public void programPath(Trajectory path) {
+		Log.info("RUNNING MICROBEAM PROGRAM ALONG PATH OF "+path.size()+" SEGMENTS ("+path.countArcs()+" ARCS)");
+		mirror.runProgram(path);
+    }
+
+    /**
+     * Streams a compiled path like streamPath(path), stopping once stop returns true, e.g. when the user presses
+     * the plugin's stop button. The shutter closes as soon as the stop is seen; the motion ends within a few segments.
+     * @param stop checked before each block of segments is sent
+     */
+    public void streamPath(Trajectory path, BooleanSupplier stop) {
+		Log.info("STREAMING MICROBEAM ALONG PATH OF "+path.size()+" SEGMENTS ("+path.countArcs()+" ARCS)");
+		mirror.streamTo(path, closingShutter(stop));
+    }
+
+    /**
+     * Runs a compiled path like programPath(path), stopping once stop returns true. A stored program cannot be
+     * interrupted, so the shutter closes as soon as the stop is seen and the mirror finishes the pass in the dark.
+     * @param stop checked before the program starts, and while it runs
+     */
+    public void programPath(Trajectory path, BooleanSupplier stop) {
+		Log.info("RUNNING MICROBEAM PROGRAM ALONG PATH OF "+path.size()+" SEGMENTS ("+path.countArcs()+" ARCS)");
+		mirror.runProgram(path, closingShutter(stop));
+    }
+
+    /**
+     * @return a check that is true once stop is, closing the shutter the first time
+     */
+    private BooleanSupplier closingShutter(final BooleanSupplier stop) {
+		return new BooleanSupplier() {
+			private boolean stopped = false;
+
+			public boolean getAsBoolean() {
+				if (!stopped && stop.getAsBoolean()) {
+					stopped = true;
+					closeShutter();
+				}
+				return stopped;
+			}
+		};
+    }
+
+    /**
+     * Converts pixel positions into mirror positions (mm) with the calibration.
+     */
+    public void toMirror(double[] xpix, double[] ypix, ImageProcessor ip, int zoom, double[] axis1, double[] axis2) {
+		getTransform(ip, zoom).transform(xpix, ypix, xpix.length, axis1, axis2);
+    }
+
+    /**
+     * @return the calibration compiled for the size of the image and the zoom, reused while they stay the same
+     */
+    public PixelTransform getTransform(ImageProcessor ip, int zoom) {
+		CalibrationProfile p = get_profile();
+		if (p != null && p.getZoom() == zoom)
+			return p.getTransform(ip.getWidth(), ip.getHeight());
+		CalibrationModel calibration = config().getCalibration();
+		PixelTransform t = transform;
+		if (t == null || !t.matches(calibration, ip.getWidth(), ip.getHeight(), zoom)) {
+			t = calibration.compile(ip.getWidth(), ip.getHeight(), zoom);
+			transform = t;
+		}
+		return t;
     }
 
     public void off() {
-        IJ.log("\nMICROBEAM OFF");
-        mirror.off();
-        shutter.off();
+        Log.info("\nMICROBEAM OFF");
+        try {
+            mirror.off();
+        } finally {
+            shutter.off();
+            Log.flush();
+        }
+    }
+
+    /**
+     * @return true if a port failed or the mirror controller stopped answering; the microbeam cannot be used again
+     */
+    public boolean isBroken() {
+        return mirror.isBroken() || shutter.isBroken();
     }
 
     public void moveToMM(double x, double y) {
-        IJ.log("MOVING MICROBEAM TO POSITION (MM): "+IJ.d2s(x,4)+", "+IJ.d2s(y,4));
+        if (Log.TRACE) Log.debug("MOVING MICROBEAM TO POSITION (MM): "+IJ.d2s(x,4)+", "+IJ.d2s(y,4));
         mirror.moveTo(x,y);
     }
 
     public void arcmoveToMM(double x0, double y0, double degrees) {
-        IJ.log("MOVING MICROBEAM ALONG ARC CENTERED AT (MM): "+IJ.d2s(x0,4)+", "+IJ.d2s(y0,4));
+        if (Log.TRACE) Log.debug("MOVING MICROBEAM ALONG ARC CENTERED AT (MM): "+IJ.d2s(x0,4)+", "+IJ.d2s(y0,4));
         mirror.arcmoveTo(x0,y0,degrees);
     }
     public void setMirrorVelocity(double v) {
-        IJ.log("SET MIRROR VELOCITY TO "+IJ.d2s(v,4));
+        Log.info("SET MIRROR VELOCITY TO "+IJ.d2s(v,4));
         mirror.setVelocity(v);
     }
 
+    /**
+     * @return an estimator of mirror motion times at the current mirror velocity
+     */
+    public MotionEstimator getMotionEstimator() {
+        return mirror.estimator();
+    }
+
     public void defineMirrorHome() {
         mirror.defineHome();
     }
@@ -114,18 +225,116 @@ public class Microbeam {
     	mirror.setNewHome(x, y);
     }
     
+    /**
+     * Returns as soon as the command is sent. The shutter opens getShutterSeconds() later, and closes the same
+     * time after closeShutter() is sent, so the time between the two calls is the exposure.
+     */
     public void openShutter() {
         shutter.open();
-        IJ.log("OPEN SHUTTER");
+        Log.info("OPEN SHUTTER");
     }
 
+    /**
+     * Returns once the shutter has closed.
+     */
     public void closeShutter() {
         shutter.close();
-        IJ.log("CLOSE SHUTTER");
+        Log.info("CLOSE SHUTTER");
+    }
+
+    /**
+     * Blocks until the last shutter command has taken effect, e.g. before moving the mirror along a cut.
+     */
+    public void waitForShutter() {
+        shutter.awaitSwitched();
+    }
+
+    /**
+     * @return time from sending a shutter command until the shutter has switched, s
+     */
+    public double getShutterSeconds() {
+        return shutter.getSwitchSeconds();
+    }
+
+    /**
+     * @return the configuration in use; it is replaced whenever the config file changes
+     */
+    public MicrobeamConfig config() {
+        return MicrobeamConfig.current();
     }
 
     public double get_microns_per_pixel() {
-        return this.microns_per_pixel;
+        return config().getMicronsPerPixel();
+    }
+
+    /**
+     * Converts a distance in the sample to pixels of an image at the given zoom, using the profile in use.
+     */
+    public double micronsToPixels(double microns, int zoom) {
+        CalibrationProfile p = get_profile();
+        if (p != null && p.getZoom() == zoom) return microns / p.getMicronsPerPixel();
+        return microns * zoom / get_microns_per_pixel();
+    }
+
+    /**
+     * Chooses the calibration profile for an image: the one for the given objective and zoom if there is one,
+     * otherwise one for the zoom whose scale matches the pixel size of the image. Without a match the default
+     * calibration, divided by the zoom, is used.
+     * @param imp image to be targeted, or null
+     * @param mag magnification of the objective, or 0 if unknown
+     * @return the profile now in use, or null for the default calibration
+     */
+    public CalibrationProfile selectProfile(ImagePlus imp, int mag, int zoom) {
+        List<CalibrationProfile> profiles = config().getProfiles();
+        CalibrationProfile chosen = null;
+        for (CalibrationProfile p : profiles) {
+            if (p.getMagnification() == mag && p.getZoom() == zoom) {
+                chosen = p;
+                break;
+            }
+        }
+        if (chosen == null && imp != null) {
+            ij.measure.Calibration cal = imp.getCalibration();
+            String unit = cal.getUnit();
+            if (cal.scaled() && (unit.equals("micron") || unit.equals("um") || unit.equals("\u00B5m"))) {
+                for (CalibrationProfile p : profiles) {
+                    if (p.getZoom() == zoom && p.matchesPixelSize(cal.pixelWidth)) {
+                        chosen = p;
+                        break;
+                    }
+                }
+            }
+        }
+        profileName = chosen == null ? null : chosen.getName();
+        if (chosen != null)
+            Log.info("USING CALIBRATION PROFILE "+chosen);
+        else if (!profiles.isEmpty())
+            Log.info("NO CALIBRATION PROFILE FOR "+mag+"x, ZOOM "+zoom+"; USING DEFAULT CALIBRATION");
+        return chosen;
+    }
+
+    /**
+     * @return the profile in use, as in the current configuration, or null for the default calibration
+     */
+    public CalibrationProfile get_profile() {
+        String name = profileName;
+        return name == null ? null : config().getProfile(name);
+    }
+
+    public List<CalibrationProfile> get_profiles() {
+        return config().getProfiles();
+    }
+
+    /**
+     * @return the zoom that the calibration in use divides pixel positions by: 1 for a profile made at this zoom
+     */
+    public int get_calibration_zoom(int zoom) {
+        CalibrationProfile p = get_profile();
+        return (p != null && p.getZoom() == zoom) ? 1 : zoom;
+    }
+
+    public String get_config_path() {
+        return this.configfilepath;
     }
 
     public String get_mirror_port() {
@@ -137,13 +346,22 @@ public class Microbeam {
     }
 
     public double[] get_calibration () {
-        double[] cal = new double[4];
-        cal[0] = cal1X; cal[1] = cal1Y; cal[2] = cal2X; cal[3] = cal2Y;
-        return cal;
+        return config().getCalibration().getLinear();
     }
 
-    public long get_timeout() {
-        return timeOut;
+    /**
+     * @return the calibration of the profile in use, or the default calibration
+     */
+    public CalibrationModel get_calibration_model() {
+        CalibrationProfile p = get_profile();
+        return p != null ? p.getModel() : config().getCalibration();
+    }
+
+    /**
+     * @return ms allowed beyond the predicted duration of each mirror command
+     */
+    public long get_timeout_margin() {
+        return config().getTimeoutMargin();
     }
 
     public boolean isSetupOK() {
@@ -151,24 +369,31 @@ public class Microbeam {
     }
 
     public void set_microns_per_pixel(double mpp) {
-        this.microns_per_pixel = mpp;
+        MicrobeamConfig.publish(config().withMicronsPerPixel(mpp));
     }
 
     public void set_calibration (double c1X, double c1Y, double c2X, double c2Y) {
-        this.cal1X = c1X; this.cal1Y=c1Y; this.cal2X=c2X; this.cal2Y=c2Y;
+        MicrobeamConfig c = config();
+        MicrobeamConfig.publish(c.withCalibration(c.getCalibration().withLinear(c1X, c1Y, c2X, c2Y)));
+    }
+
+    /**
+     * Replaces the calibration of the profile in use, or the default calibration.
+     */
+    public void set_calibration (CalibrationModel model) {
+        CalibrationProfile p = get_profile();
+        if (p != null)
+            MicrobeamConfig.publish(config().withProfile(p.withModel(model)));
+        else
+            MicrobeamConfig.publish(config().withCalibration(model));
     }
 
+    /**
+     * Writes the current configuration to a file, replacing it atomically.
+     */
     public void saveConfig(String textfile) {
         try {
-			PrintWriter config = new PrintWriter(new BufferedWriter(new FileWriter(textfile, false)));
-			config.println(mr_port + "\t\tSerial Port - Mirror Scanner");
-			config.println(sh_port + "\t\tSerial Port - Shutter");
-			config.println(microns_per_pixel + "\t\tConversion: microns per pixel");
-			config.println(cal1X + "\tConversion: mm travel(axis ONE) per pix(X)");
-			config.println(cal1Y + "\tConversion: mm travel(axis ONE) per pix(Y)");
-			config.println(cal2X + "\tConversion: mm travel(axis TWO) per pix(X)");
-			config.println(cal2Y + "\tConversion: mm travel(axis TWO) per pix(Y)");
-            config.close();
+            config().write(textfile);
             this.printConfig();
         }
         catch (IOException e) {
@@ -184,15 +409,24 @@ public class Microbeam {
         String p5 = "Conversion - mm travel (axis 1) per pixel (Y):     ";
         String p6 = "Conversion - mm travel (axis 2) per pixel (X):     ";
         String p7 = "Conversion - mm travel (axis 2) per pixel (Y):     ";
-        IJ.log("CURRENT MICROBEAM CONFIGURATION\n\n");
-        IJ.log(p1+"\t"+ this.mr_port);
-        IJ.log(p2+"\t"+ this.sh_port);
-        IJ.log( p3 +"\t"+ IJ.d2s(this.microns_per_pixel,6));
-        IJ.log( p4 +"\t"+ IJ.d2s(this.cal1X,6));
-        IJ.log( p5 +"\t"+ IJ.d2s(this.cal1Y,6));
-        IJ.log( p6 +"\t"+ IJ.d2s(this.cal2X,6));
-        IJ.log( p7 +"\t"+ IJ.d2s(this.cal2Y,6));
-        IJ.log("");
+        MicrobeamConfig config = config();
+        CalibrationModel calibration = config.getCalibration();
+        Log.info("CURRENT MICROBEAM CONFIGURATION\n\n");
+        Log.info(p1+"\t"+ config.getMirrorPort());
+        Log.info(p2+"\t"+ config.getShutterPort());
+        Log.info( p3 +"\t"+ IJ.d2s(config.getMicronsPerPixel(),6));
+        double[] cal = calibration.getLinear();
+        Log.info( p4 +"\t"+ IJ.d2s(cal[0],6));
+        Log.info( p5 +"\t"+ IJ.d2s(cal[1],6));
+        Log.info( p6 +"\t"+ IJ.d2s(cal[2],6));
+        Log.info( p7 +"\t"+ IJ.d2s(cal[3],6));
+        for (CalibrationProfile p : config.getProfiles())
+            Log.info("Calibration profile:     \t"+ p +", "+ IJ.d2s(p.getMicronsPerPixel(),4) +" microns per pixel");
+        if (calibration.getOffset1() != 0 || calibration.getOffset2() != 0)
+            Log.info("Calibration - mm offset (axis 1, axis 2):     \t"+ IJ.d2s(calibration.getOffset1(),6)+", "+IJ.d2s(calibration.getOffset2(),6));
+        if (calibration.hasDistortion())
+            Log.info("Calibration - distortion terms per axis:     \t"+ calibration.getPolynomial1().length);
+        Log.info("");
     }
 
     boolean dialogConfig() {
@@ -206,25 +440,29 @@ public class Microbeam {
 		gd.addChoice("Mirror Controller: ",ports, this.mr_port);
 		gd.addChoice("Shutter: ",ports, this.sh_port);
 		gd.addMessage("______________________________________________");
-		gd.addNumericField("Image scale (microns per pixel): ", this.microns_per_pixel, 3);
+		gd.addNumericField("Image scale (microns per pixel): ", get_microns_per_pixel(), 3);
 		gd.addMessage("______________________________________________");
 		gd.addMessage("MIRROR ACTUATOR CALIBRATION");
-		gd.addNumericField("mm travel on axis 1 per pixel (X): ",this.cal1X, 8);
-		gd.addNumericField("mm travel on axis 1 per pixel (Y): ",this.cal1Y, 8);
-		gd.addNumericField("mm travel on axis 2 per pixel (X): ",this.cal2X, 8);
-		gd.addNumericField("mm travel on axis 2 per pixel (Y): ",this.cal2Y, 8);
+		double[] cal = get_calibration();
+		gd.addNumericField("mm travel on axis 1 per pixel (X): ",cal[0], 8);
+		gd.addNumericField("mm travel on axis 1 per pixel (Y): ",cal[1], 8);
+		gd.addNumericField("mm travel on axis 2 per pixel (X): ",cal[2], 8);
+		gd.addNumericField("mm travel on axis 2 per pixel (Y): ",cal[3], 8);
 		gd.showDialog();
 		if (gd.wasCanceled()) {
 			IJ.error("Plugin Canceled!");
 			return false;
 		}
-		this.mr_port = gd.getNextChoice();
-		this.sh_port = gd.getNextChoice();
-		this.microns_per_pixel = gd.getNextNumber();
-		this.cal1X = gd.getNextNumber();
-		this.cal1Y = gd.getNextNumber();
-		this.cal2X = gd.getNextNumber();
-		this.cal2Y = gd.getNextNumber();
+		String mirrorPort = gd.getNextChoice();
+		String shutterPort = gd.getNextChoice();
+		double mpp = gd.getNextNumber();
+		double c1X = gd.getNextNumber();
+		double c1Y = gd.getNextNumber();
+		double c2X = gd.getNextNumber();
+		double c2Y = gd.getNextNumber();
+		MicrobeamConfig c = config();
+		MicrobeamConfig.publish(c.withPorts(mirrorPort, shutterPort).withMicronsPerPixel(mpp)
+				.withCalibration(c.getCalibration().withLinear(c1X, c1Y, c2X, c2Y)));
 		return true;
     }
 
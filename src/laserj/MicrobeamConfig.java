@@ -0,0 +1,388 @@
+package laserj;
+
+/* Name: MicrobeamConfig.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Immutable snapshot of the microbeam configuration, and the store that keeps it current.
+ * The config file holds typed key=value entries and a schema version:
+ *   version = 2
+ *   mirror.port = COM11
+ *   shutter.port = COM12
+ *   microns.per.pixel = 0.3
+ *   mirror.timeout.margin = 250      (optional, ms allowed beyond the predicted duration of each mirror command)
+ *   shutter.settle = 20              (optional, ms for the shutter blades to move once the driver has the command)
+ *   calibration.axis1.x = -8.898069436720426E-4      (mm travel on axis 1 per pixel in X, likewise for the others)
+ *   calibration.axis1.y, calibration.axis2.x, calibration.axis2.y
+ *   calibration.offset1 = 0.0, calibration.offset2 = 0.0     (optional, mm)
+ *   calibration.distortion1, calibration.distortion2          (optional, comma-separated coefficients)
+ *   profile.<name> = magnification zoom width height microns-per-pixel c1X c1Y c2X c2Y offset1 offset2
+ *                    [distortion1 distortion2]   (optional, comma-separated coefficients as above)
+ * Lines starting with # are comments. Files in the original positional format are migrated in memory only; the
+ * file is left alone until the config is saved, which backs it up and writes it in this format. The file is parsed once; load() starts a WatchService thread that reparses it whenever it
+ * changes and swaps the new snapshot in atomically, so recalibrations take effect in an open microbeam without
+ * reopening its ports. Files are written to a temporary file that is then renamed over the original, so a
+ * reader never sees half a file.
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import laserj.calib.*;
+
+public final class MicrobeamConfig {
+
+	public static final int VERSION = 2;
+
+	private static final long RELOAD_SETTLE = 200L;		// ms to let an editor finish writing before reloading
+	public static final long DEFAULT_TIMEOUT_MARGIN = 250L;
+	public static final long DEFAULT_SHUTTER_SETTLE = 20L;
+
+	private static final AtomicReference<MicrobeamConfig> current = new AtomicReference<MicrobeamConfig>();
+	private static Thread watcher;
+	private static Path watched;
+
+	private final String mirrorPort, shutterPort;
+	private final double micronsPerPixel;
+	private final long timeoutMargin, shutterSettle;
+	private final CalibrationModel calibration;
+	private final List<CalibrationProfile> profiles;
+
+	public MicrobeamConfig(String mirrorPort, String shutterPort, double micronsPerPixel, CalibrationModel calibration,
+			List<CalibrationProfile> profiles) {
+		this(mirrorPort, shutterPort, micronsPerPixel, DEFAULT_TIMEOUT_MARGIN, DEFAULT_SHUTTER_SETTLE, calibration, profiles);
+	}
+
+	public MicrobeamConfig(String mirrorPort, String shutterPort, double micronsPerPixel, long timeoutMargin, long shutterSettle,
+			CalibrationModel calibration, List<CalibrationProfile> profiles) {
+		this.mirrorPort = mirrorPort;
+		this.shutterPort = shutterPort;
+		this.micronsPerPixel = micronsPerPixel;
+		this.timeoutMargin = timeoutMargin;
+		this.shutterSettle = shutterSettle;
+		this.calibration = calibration;
+		this.profiles = Collections.unmodifiableList(new ArrayList<CalibrationProfile>(profiles));
+	}
+
+	public String getMirrorPort() { return mirrorPort; }
+	public String getShutterPort() { return shutterPort; }
+	public double getMicronsPerPixel() { return micronsPerPixel; }
+	public long getTimeoutMargin() { return timeoutMargin; }
+	public long getShutterSettle() { return shutterSettle; }
+	public CalibrationModel getCalibration() { return calibration; }
+	public List<CalibrationProfile> getProfiles() { return profiles; }
+
+	public CalibrationProfile getProfile(String name) {
+		for (CalibrationProfile p : profiles)
+			if (p.getName().equals(name)) return p;
+		return null;
+	}
+
+	public MicrobeamConfig withPorts(String mirror, String shutter) {
+		return new MicrobeamConfig(mirror, shutter, micronsPerPixel, timeoutMargin, shutterSettle, calibration, profiles);
+	}
+
+	public MicrobeamConfig withMicronsPerPixel(double mpp) {
+		return new MicrobeamConfig(mirrorPort, shutterPort, mpp, timeoutMargin, shutterSettle, calibration, profiles);
+	}
+
+	public MicrobeamConfig withCalibration(CalibrationModel model) {
+		return new MicrobeamConfig(mirrorPort, shutterPort, micronsPerPixel, timeoutMargin, shutterSettle, model, profiles);
+	}
+
+	/**
+	 * @return a copy with the profile of the same name replaced, or added if there is none
+	 */
+	public MicrobeamConfig withProfile(CalibrationProfile profile) {
+		List<CalibrationProfile> list = new ArrayList<CalibrationProfile>(profiles);
+		int i = list.indexOf(getProfile(profile.getName()));
+		if (i >= 0) list.set(i, profile);
+		else list.add(profile);
+		return new MicrobeamConfig(mirrorPort, shutterPort, micronsPerPixel, timeoutMargin, shutterSettle, calibration, list);
+	}
+
+	/**
+	 * @return the configuration in use, or null if none has been loaded
+	 */
+	public static MicrobeamConfig current() {
+		return current.get();
+	}
+
+	/**
+	 * Makes a changed configuration current, without writing it to disk.
+	 */
+	public static void publish(MicrobeamConfig config) {
+		current.set(config);
+	}
+
+	/**
+	 * Returns the configuration in the given file, parsing it only if it is not already the one being watched.
+	 * @throws IllegalArgumentException if the file cannot be read or is not a valid config
+	 */
+	public static synchronized MicrobeamConfig load(String path) {
+		Path p = Paths.get(path).toAbsolutePath();
+		MicrobeamConfig config = current.get();
+		if (config != null && p.equals(watched)) return config;
+		config = read(p);
+		current.set(config);
+		watch(p);
+		return config;
+	}
+
+	/**
+	 * Parses a config file, migrating files in the original positional format in memory; the file is not changed.
+	 */
+	static MicrobeamConfig read(Path path) {
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(path, StandardCharsets.ISO_8859_1);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Error reading microbeam config file. "+e.getMessage());
+		}
+		if (!isKeyValue(lines)) {
+			Log.info("Microbeam config is in the original format; it will be written as version "+VERSION+" when saved");
+			return parseLegacy(lines);
+		}
+		return parse(lines);
+	}
+
+	private static boolean isKeyValue(List<String> lines) {
+		for (String line : lines) {
+			String t = line.trim();
+			if (t.isEmpty() || t.startsWith("#")) continue;
+			return t.startsWith("version") && t.contains("=");
+		}
+		return false;
+	}
+
+	/**
+	 * Parses key=value lines.
+	 * @throws IllegalArgumentException naming the offending key if an entry is missing or malformed
+	 */
+	static MicrobeamConfig parse(List<String> lines) {
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for (String line : lines) {
+			String t = line.trim();
+			if (t.isEmpty() || t.startsWith("#")) continue;
+			int eq = t.indexOf('=');
+			if (eq < 0) throw new IllegalArgumentException("Microbeam config line is not key = value: "+t);
+			values.put(t.substring(0, eq).trim(), t.substring(eq + 1).trim());
+		}
+		int version = (int) number(values, "version", -1);
+		if (version > VERSION)
+			throw new IllegalArgumentException("Microbeam config version "+version+" is newer than this plugin ("+VERSION+").");
+		String mirror = text(values, "mirror.port");
+		String shutter = text(values, "shutter.port");
+		double mpp = number(values, "microns.per.pixel", Double.NaN);
+		long margin = (long) number(values, "mirror.timeout.margin", DEFAULT_TIMEOUT_MARGIN);
+		if (margin < 0) throw new IllegalArgumentException("Microbeam config mirror.timeout.margin is negative: "+margin);
+		long settle = (long) number(values, "shutter.settle", DEFAULT_SHUTTER_SETTLE);
+		if (settle < 0) throw new IllegalArgumentException("Microbeam config shutter.settle is negative: "+settle);
+		CalibrationModel model = new CalibrationModel(
+				number(values, "calibration.axis1.x", Double.NaN), number(values, "calibration.axis1.y", Double.NaN),
+				number(values, "calibration.axis2.x", Double.NaN), number(values, "calibration.axis2.y", Double.NaN),
+				number(values, "calibration.offset1", 0), number(values, "calibration.offset2", 0),
+				polynomial(values, "calibration.distortion1"), polynomial(values, "calibration.distortion2"));
+		List<CalibrationProfile> profiles = new ArrayList<CalibrationProfile>();
+		for (Map.Entry<String, String> e : values.entrySet())
+			if (e.getKey().startsWith("profile."))
+				profiles.add(CalibrationProfile.parse(e.getKey().substring("profile.".length()), e.getValue()));
+		return new MicrobeamConfig(mirror, shutter, mpp, margin, settle, model, profiles);
+	}
+
+	private static String text(Map<String, String> values, String key) {
+		String v = values.get(key);
+		if (v == null || v.isEmpty()) throw new IllegalArgumentException("Microbeam config has no "+key+".");
+		return v;
+	}
+
+	// NaN as the default means the key is required
+	private static double number(Map<String, String> values, String key, double defaultValue) {
+		String v = values.get(key);
+		if (v == null || v.isEmpty()) {
+			if (Double.isNaN(defaultValue)) throw new IllegalArgumentException("Microbeam config has no "+key+".");
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(v);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Microbeam config "+key+" is not a number: "+v);
+		}
+	}
+
+	private static double[] polynomial(Map<String, String> values, String key) {
+		String v = values.get(key);
+		try {
+			return v == null ? null : CalibrationModel.parsePolynomial(v);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Microbeam config "+key+" is not a list of numbers: "+v);
+		}
+	}
+
+	/**
+	 * Parses the original positional format: mirror port, shutter port, microns per pixel and the four
+	 * calibration coefficients, one per line, then optional offsets, distortion terms and profile lines.
+	 */
+	static MicrobeamConfig parseLegacy(List<String> lines) {
+		List<String> first = new ArrayList<String>();
+		List<String> extra = new ArrayList<String>();
+		List<CalibrationProfile> profiles = new ArrayList<CalibrationProfile>();
+		for (String line : lines) {
+			if (line.trim().isEmpty()) continue;
+			String token = new StringTokenizer(line).nextToken();
+			if (first.size() < 7) first.add(token);
+			else if (token.equals(CalibrationProfile.KEYWORD)) profiles.add(CalibrationProfile.parse(line));
+			else extra.add(token);
+		}
+		if (first.size() < 7)
+			throw new IllegalArgumentException("Microbeam config file is not formatted properly.");
+		try {
+			double[] offset = new double[2];
+			double[][] poly = new double[2][];
+			for (int i = 0; i < extra.size() && i < 4; i++) {
+				if (i < 2) offset[i] = Double.parseDouble(extra.get(i));
+				else poly[i-2] = CalibrationModel.parsePolynomial(extra.get(i));
+			}
+			CalibrationModel model = new CalibrationModel(Double.parseDouble(first.get(3)), Double.parseDouble(first.get(4)),
+					Double.parseDouble(first.get(5)), Double.parseDouble(first.get(6)), offset[0], offset[1], poly[0], poly[1]);
+			return new MicrobeamConfig(first.get(0), first.get(1), Double.parseDouble(first.get(2)), model, profiles);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Microbeam config file is not formatted properly.");
+		}
+	}
+
+	/**
+	 * @return the config as key=value lines
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+		String nl = System.getProperty("line.separator");
+		double[] c = calibration.getLinear();
+		sb.append("# Microbeam configuration").append(nl);
+		sb.append("version = ").append(VERSION).append(nl);
+		sb.append("# Serial ports, SIM for the simulators, tcp://host:port or loop:name").append(nl);
+		sb.append("mirror.port = ").append(mirrorPort).append(nl);
+		sb.append("shutter.port = ").append(shutterPort).append(nl);
+		sb.append("microns.per.pixel = ").append(micronsPerPixel).append(nl);
+		sb.append("# ms allowed beyond the predicted duration of each mirror command before probing the controller").append(nl);
+		sb.append("mirror.timeout.margin = ").append(timeoutMargin).append(nl);
+		sb.append("# ms for the shutter blades to move once the driver has received a command").append(nl);
+		sb.append("shutter.settle = ").append(shutterSettle).append(nl);
+		sb.append("# mm travel on each mirror axis per pixel in X and Y, mm offset of the image center").append(nl);
+		sb.append("calibration.axis1.x = ").append(c[0]).append(nl);
+		sb.append("calibration.axis1.y = ").append(c[1]).append(nl);
+		sb.append("calibration.axis2.x = ").append(c[2]).append(nl);
+		sb.append("calibration.axis2.y = ").append(c[3]).append(nl);
+		sb.append("calibration.offset1 = ").append(calibration.getOffset1()).append(nl);
+		sb.append("calibration.offset2 = ").append(calibration.getOffset2()).append(nl);
+		if (calibration.hasDistortion()) {
+			sb.append("# distortion coefficients uu,uv,vv[,uuu,uuv,uvv,vvv]").append(nl);
+			sb.append("calibration.distortion1 = ").append(CalibrationModel.formatPolynomial(calibration.getPolynomial1())).append(nl);
+			sb.append("calibration.distortion2 = ").append(CalibrationModel.formatPolynomial(calibration.getPolynomial2())).append(nl);
+		}
+		if (!profiles.isEmpty())
+			sb.append("# profile.name = magnification zoom width height microns-per-pixel c1X c1Y c2X c2Y offset1 offset2").append(nl);
+		for (CalibrationProfile p : profiles)
+			sb.append("profile.").append(p.getName()).append(" = ").append(p.formatFields()).append(nl);
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the config atomically: to a temporary file in the same folder, which is then renamed over the file.
+	 * A file in the original positional format is first copied to a .v1 backup.
+	 */
+	public void write(String path) throws IOException {
+		Path target = Paths.get(path).toAbsolutePath();
+		if (Files.exists(target) && !isKeyValue(Files.readAllLines(target, StandardCharsets.ISO_8859_1))) {
+			Path backup = target.resolveSibling(target.getFileName()+".v1");
+			Files.copy(target, backup, StandardCopyOption.REPLACE_EXISTING);
+			Log.info("Migrating microbeam config to version "+VERSION+"; the original is kept in "+backup);
+		}
+		Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			Files.write(temp, format().getBytes(StandardCharsets.ISO_8859_1));
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		ConfigLocator.remember(target.toFile());
+	}
+
+	/**
+	 * Watches the folder of the config file and reloads the config whenever the file changes.
+	 */
+	private static void watch(final Path path) {
+		if (watcher != null) watcher.interrupt();
+		watched = path;
+		final WatchService service;
+		try {
+			service = path.getFileSystem().newWatchService();
+			path.getParent().register(service, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+		} catch (IOException e) {
+			Log.warn("Microbeam config changes will not be picked up until restart: "+e.getMessage());
+			watcher = null;
+			return;
+		}
+		watcher = new Thread("Microbeam config watcher") {
+			public void run() {
+				try {
+					while (!isInterrupted()) {
+						WatchKey key = service.take();
+						boolean changed = false;
+						for (WatchEvent<?> event : key.pollEvents()) {
+							Object name = event.context();
+							if (name instanceof Path && path.getFileName().equals(name)) changed = true;
+							else if (event.kind() == StandardWatchEventKinds.OVERFLOW) changed = true;
+						}
+						key.reset();
+						if (changed) {
+							Thread.sleep(RELOAD_SETTLE);
+							WatchKey more;		// one reload for all the events of one save
+							while ((more = service.poll()) != null) {
+								more.pollEvents();
+								more.reset();
+							}
+							reload(path);
+						}
+					}
+				} catch (InterruptedException e) {
+					// replaced by a watcher for another file
+				} catch (ClosedWatchServiceException e) {
+				} finally {
+					try { service.close(); } catch (IOException e) { }
+				}
+			}
+		};
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	private static void reload(Path path) {
+		MicrobeamConfig old = current.get();
+		MicrobeamConfig config;
+		try {
+			config = read(path);
+		} catch (IllegalArgumentException e) {
+			Log.error("Microbeam config changed but was not reloaded: "+e.getMessage());
+			return;
+		}
+		synchronized (MicrobeamConfig.class) {
+			if (!path.equals(watched)) return;
+			current.set(config);
+		}
+		if (old != null && old.format().equals(config.format())) return;		// our own write, or no real change
+		Log.info("MICROBEAM CONFIG RELOADED FROM "+path);
+		if (old != null && (!old.mirrorPort.equals(config.mirrorPort) || !old.shutterPort.equals(config.shutterPort)
+				|| old.timeoutMargin != config.timeoutMargin || old.shutterSettle != config.shutterSettle))
+			Log.warn("Serial port, timeout margin and shutter settle changes take effect after Reset_Microbeam.");
+	}
+
+}
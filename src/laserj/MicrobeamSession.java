@@ -0,0 +1,97 @@
+package laserj;
+
+/* Name: MicrobeamSession.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Keeps one microbeam open between plugin invocations.
+ * Opening a microbeam means finding its config file, opening both serial ports and powering on the mirror
+ * motors, which takes seconds. Plugins acquire the shared microbeam from this class instead of constructing
+ * their own, and release it when done, in a finally block. Once no plugin has held it for IDLE_TIMEOUT, it is
+ * turned off. A microbeam whose port failed or whose mirror controller stopped answering is closed as soon as it
+ * is released, so the next plugin opens a fresh one instead of reusing it.
+ */
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+public class MicrobeamSession {
+
+	/** SETTINGS TO CONFIGURE **/
+	private static final long IDLE_TIMEOUT = 10 * 60 * 1000L;	// 10 minutes without use
+
+	private static Microbeam microbeam;
+	private static int users = 0;
+	private static Timer timer;
+	private static TimerTask idleShutdown;
+
+	private MicrobeamSession() { }
+
+	/**
+	 * Returns the shared microbeam, opening it if it is not already open.
+	 * Every call must be matched by a call to release().
+	 */
+	public static synchronized Microbeam acquire() {
+		if (idleShutdown != null) {
+			idleShutdown.cancel();
+			idleShutdown = null;
+		}
+		if (microbeam == null) {
+			microbeam = new Microbeam(Microbeam.CONFIG_FILENAME);
+		} else {
+			Log.info("REUSING OPEN MICROBEAM");
+		}
+		users++;
+		return microbeam;
+	}
+
+	/**
+	 * Hands the microbeam back. The ports stay open, and the microbeam is turned off
+	 * only after it has gone unused for IDLE_TIMEOUT, unless it is broken.
+	 */
+	public static synchronized void release(Microbeam m) {
+		if (m == null || m != microbeam) return;
+		Log.flush();		// so the plugin's own log output comes after the microbeam's
+		if (m.isBroken()) {
+			Log.warn("MICROBEAM CONNECTION FAILED; CLOSING IT SO THE NEXT PLUGIN OPENS IT AGAIN");
+			try {
+				shutdown();
+			} catch (IllegalArgumentException e) {
+				Log.flush();		// already logged by the failing port
+			}
+			return;
+		}
+		if (users > 0) users--;
+		if (users == 0) {
+			if (timer == null) timer = new Timer("Microbeam idle shutdown", true);
+			idleShutdown = new TimerTask() {
+				public void run() {
+					synchronized (MicrobeamSession.class) {
+						if (idleShutdown == this) shutdown();
+					}
+				}
+			};
+			timer.schedule(idleShutdown, IDLE_TIMEOUT);
+		}
+	}
+
+	/**
+	 * Turns the microbeam off now, regardless of how many plugins still hold it.
+	 */
+	public static synchronized void shutdown() {
+		if (idleShutdown != null) {
+			idleShutdown.cancel();
+			idleShutdown = null;
+		}
+		Microbeam m = microbeam;
+		microbeam = null;		// not reused, even if turning it off fails
+		users = 0;
+		if (m != null) m.off();
+	}
+
+	public static synchronized boolean isOpen() {
+		return microbeam != null;
+	}
+
+}
@@ -13,173 +13,666 @@ package laserj;
  * which corresponds to the location of a laser spot that is reflected off the mirror.
  * Several methods for moving the current position to a new location through either a straight
  * line or an arc are provided.
+ * The mirror keeps a shadow of the controller state (motor power, group, velocity, acceleration and deceleration,
+ * last commanded and confirmed position, home offset), read from the controller when it connects, and skips
+ * commands that would not change it.
+ * All commands go through a CommandBus, whose thread owns the port and matches replies to requests in order.
+ * Motion commands are built straight into the bus's reusable command slots, so moves and streamed segments
+ * allocate nothing per command.
+ * Commands are issued from one thread at a time; several queries may be in flight at once.
  * See the documentation for the ESP300 and the open-source java-simple-serial-connector (jSSC) 
  * https://code.google.com/p/java-simple-serial-connector/ for details on the implementation 
  * of the communication between the host computer and the microcontroller over a serial port.
  */
 
+import java.util.*;
+import java.util.function.BooleanSupplier;
+
+import java.io.IOException;
+
 import jssc.SerialPort;
-import jssc.SerialPortEvent;
-import jssc.SerialPortEventListener;
-import jssc.SerialPortException;
+import laserj.path.Trajectory;
+import laserj.sim.Esp300Simulator;
 
 import ij.*;
 
-public class Mirror implements SerialPortEventListener {
+public class Mirror {
 	
-	private static SerialPort mirrorPort;
+	private CommandBus bus;		// owns the port
 	
 	private static final double MAXVELOCITY = 0.2;
 	private static final double MINVELOCITY = 0.01;
+	private static final double ACCELERATION = 0.1;	// mm/s^2
+	private static final double DECELERATION = 0.1;	// mm/s^2
+	static final int BAUDRATE = SerialPort.BAUDRATE_19200;	// see user manual to verify parameters
+	
+	private static final int STREAM_BLOCK = 4;		// segments sent per flow-control acknowledgement
+	private static final int STREAM_BLOCKS_AHEAD = 2;	// blocks sent before waiting for the oldest acknowledgement
+	
+	private static final int PROGRAM_FIRST = 90;		// stored program numbers reserved for microbeam paths
+	private static final int PROGRAM_SLOTS = 10;
+	private static final int PROGRAM_MAX_VERTICES = 500;	// longer paths are streamed instead of stored
+	
+	private static final long STATUS_INTERVAL = 250L;	// ms between status bar updates while waiting
+	private static final double TIMEOUT_SCALE = 1.25;	// predicted durations are stretched by this before adding the margin
+	private static final long PROBE_TIMEOUT = 100L;		// ms for the controller to answer a probe, beyond the motion queued ahead of it
 	
-	private String returnedString = "No response yet";
+	private static final int REPLY_CAPACITY = 1024;	// longest expected reply line, in bytes
 	
-	private long startTime, timeOut;
-	private boolean replyReceived = false;
+	private final CommandEncoder encoder = new CommandEncoder(REPLY_CAPACITY);	// builds stored program lines
+	
+	private final long margin;		// ms allowed beyond the predicted duration of each command
+	private volatile boolean hung = false;	// the controller stopped answering
+
+	// Shadow of the controller state; NaN where unknown
+	private boolean motorsOn = false;			// motors 1 and 2 powered, with group 1 defined
+	private double velocity = Double.NaN, acceleration = Double.NaN, deceleration = Double.NaN;
+	private double x = Double.NaN, y = Double.NaN;				// confirmed position of the group
+	private double targetX = Double.NaN, targetY = Double.NaN;	// last commanded position
+	private double homeX = 0, homeY = 0;		// home relative to the one at connect, in the coordinates at connect
+	
+	// Stored programs known to be on the controller, keyed by program text, least recently used first
+	private final LinkedHashMap<String, Integer> programs = new LinkedHashMap<String, Integer>(16, 0.75f, true);
 
-	public Mirror(String portname, long t) {
-		this.timeOut = t;
+	/**
+	 * @param margin ms allowed beyond the predicted duration of each command before the controller is probed
+	 */
+	public Mirror(String portname, long margin) {
+		this.margin = margin;
 		this.openMirrorPort(portname);
 		this.initializeMirror();
 	}
 
 	void off() {
-		this.finalizeMirror();
-		try { mirrorPort.closePort(); } catch (SerialPortException e1) { }
+		try {
+			if (!isBroken()) this.finalizeMirror();
+		} finally {
+			bus.close();
+		}
+	}
+
+	/**
+	 * @return true if the port failed or the controller stopped answering, so the mirror has to be opened again
+	 */
+	boolean isBroken() {
+		return hung || bus.isFailed();
+	}
+
+	/**
+	 * Refuses to send motion to a broken mirror, so a caller with the shutter open stops at once.
+	 */
+	private void checkNotBroken() {
+		if (isBroken()) {
+			String error = "Mirror controller is not answering.";
+			Log.error(error+" No further motion is sent.");
+			throw new IllegalArgumentException(error);
+		}
 	}
 
 	void setVelocity(double velocity) {
 		if (velocity>MAXVELOCITY) velocity = MAXVELOCITY;
 		if (velocity<MINVELOCITY) velocity = MINVELOCITY;
-		writeMirror("1HV" + IJ.d2s(velocity) + ";1HA0.1;1HD0.1");	// Set vectorial velocity, acceleration & deceleration for Group 1
-		IJ.wait(200);
+		double v = Double.parseDouble(IJ.d2s(velocity));		// as rounded for the controller
+		if (v == this.velocity && acceleration == ACCELERATION && deceleration == DECELERATION) {
+			if (Log.TRACE) Log.debug("\tVelocity already "+IJ.d2s(v));
+			return;
+		}
+		boolean ok = writeAcknowledged("1HV" + IJ.d2s(velocity) + ";1HA" + ACCELERATION + ";1HD" + DECELERATION, remainingSeconds());	// Set vectorial velocity, acceleration & deceleration for Group 1
+		this.velocity = ok ? v : Double.NaN;
+		this.acceleration = ok ? ACCELERATION : Double.NaN;
+		this.deceleration = ok ? DECELERATION : Double.NaN;
 	}
 
 	void moveTo(double x, double y) {
 		boolean sure = true;
 		if ((Math.abs(x)>2.0)||(Math.abs(y)>2.0)) sure = IJ.showMessageWithCancel("ARE YOU SURE?","Mirror position "+IJ.d2s(x,2)+", "+IJ.d2s(y,2)+" will be well off the visible area.");
 		if (sure) {
-			writeMirror("1HL"+IJ.d2s(x,6)+","+IJ.d2s(y,6)+";1HW;1HQ8;1HS?");
-			char stopped = waitForMirrorReply().charAt(0);
-			IJ.log("\tReceived :\t "+stopped);
+			if (isAt(x, y)) {
+				if (Log.TRACE) Log.debug("\tAlready at "+IJ.d2s(x,6)+", "+IJ.d2s(y,6));
+				return;
+			}
+			checkNotBroken();
+			double seconds = estimator().moveSeconds(distanceTo(x, y));
+			long t0 = System.nanoTime();
+			CommandBus.Command move = bus.command();
+			move.encoder().line(x, y).append(";1HW;1HQ8;1HS?");
+			bus.send(move, "HL", CommandBus.STATUS);
+			setTarget(x, y);
+			char stopped = status(waitForMirrorReply(move, seconds), true);
+			CommandStats.record("HL", CommandStats.MOTION, System.nanoTime() - t0);
+			confirm(stopped);
+			if (Log.TRACE) Log.debug("\tReceived :\t "+stopped);
+		} else {
+			Log.warn("CANCELED MOVE TO POSITION "+IJ.d2s(x,2)+", "+IJ.d2s(y,2)+" mm.");
+		}
+	}
+
+	/**
+	 * Traces a path through the group trajectory buffer without stopping between segments.
+	 * Segments are sent in blocks of STREAM_BLOCK; each block ends with 1HQ, so its
+	 * acknowledgement only arrives once the controller has room for the next block. Up to
+	 * STREAM_BLOCKS_AHEAD blocks are kept in flight so the buffer never runs dry, and the
+	 * end of the motion is waited for only once, after the last segment.
+	 * Pressing Escape stops sending further blocks.
+	 * @param path lines and arcs in mm; the mirror should already be at its start
+	 */
+	void streamTo(Trajectory path) {
+		streamTo(path, null);
+	}
+
+	/**
+	 * Streams a path like streamTo(path), but also stops sending further blocks once stop returns true.
+	 * The blocks already sent still run, so the motion ends at most STREAM_BLOCKS_AHEAD blocks later.
+	 * @param stop checked before each block, or null
+	 */
+	void streamTo(Trajectory path, BooleanSupplier stop) {
+		if (!confirmPath(path)) return;
+		int n = path.size();
+		MotionEstimator estimator = estimator();
+		long t0 = System.nanoTime();
+		ArrayDeque<CommandBus.Command> acks = new ArrayDeque<CommandBus.Command>(STREAM_BLOCKS_AHEAD + 1);	// blocks in flight
+		int sent = 0, acked = 0;		// segments sent, and segments in acknowledged blocks
+		double sentLength = 0, ackedLength = 0;		// path length of those segments
+		for (int i = 0; i < n; i += STREAM_BLOCK) {
+			if (IJ.escapePressed() || stop != null && stop.getAsBoolean()) {
+				Log.warn("PATH STREAMING ABORTED AFTER "+i+" OF "+n+" SEGMENTS.");
+				break;
+			}
+			checkNotBroken();
+			int end = Math.min(i + STREAM_BLOCK, n);
+			if (acks.size() == STREAM_BLOCKS_AHEAD) {
+				long tq = System.nanoTime();
+				waitForMirrorReply(acks.poll(), streamSeconds(estimator, sentLength, ackedLength, t0), estimator.moveSeconds(sentLength - ackedLength));
+				CommandStats.record("HL", CommandStats.QUEUE, System.nanoTime() - tq);
+				ackedLength += length(path, acked, Math.min(acked + STREAM_BLOCK, sent));
+				acked = Math.min(acked + STREAM_BLOCK, sent);
+			}
+			CommandBus.Command block = bus.command();
+			CommandEncoder cmd = block.encoder();
+			for (int j = i; j < end; j++)
+				cmd.segment(path, j).append(';');
+			cmd.append("1HQ").append(STREAM_BLOCK).append(";1HS?");		// acknowledge once there is room for another block
+			bus.send(block, "HL", CommandBus.STATUS);
+			acks.add(block);
+			sentLength += length(path, sent, end);
+			sent = end;
+			setTarget(path.getX(sent-1), path.getY(sent-1));
+		}
+		CommandBus.Command finished = bus.command();
+		finished.encoder().append("1HW;1HQ8;1HS?");		// wait once for the whole path to finish
+		bus.send(finished, "HW", CommandBus.STATUS);
+		while (!acks.isEmpty()) {
+			waitForMirrorReply(acks.poll(), streamSeconds(estimator, sentLength, ackedLength, t0), estimator.moveSeconds(sentLength - ackedLength));
+			ackedLength += length(path, acked, Math.min(acked + STREAM_BLOCK, sent));
+			acked = Math.min(acked + STREAM_BLOCK, sent);
+		}
+		char stopped = status(waitForMirrorReply(finished, streamSeconds(estimator, sentLength, ackedLength, t0), estimator.moveSeconds(sentLength - ackedLength)), true);
+		CommandStats.record("PATH", CommandStats.MOTION, System.nanoTime() - t0);
+		confirm(stopped);
+		if (Log.TRACE) Log.debug("\tReceived :\t "+stopped);
+	}
+
+	/**
+	 * Bounds the time until the segments sent so far are finished: they take no longer than one move along all of
+	 * them that started with the stream, nor, if the host fell behind, than one move along those not yet acknowledged.
+	 */
+	private static double streamSeconds(MotionEstimator estimator, double sentLength, double ackedLength, long t0) {
+		double elapsed = (System.nanoTime() - t0) / 1e9;
+		return Math.max(estimator.moveSeconds(sentLength) - elapsed, estimator.moveSeconds(sentLength - ackedLength));
+	}
+
+	/**
+	 * @return length of segments from to to-1 of a path
+	 */
+	private static double length(Trajectory path, int from, int to) {
+		double length = 0;
+		for (int i = from; i < to; i++)
+			length += path.length(i);
+		return length;
+	}
+
+	/**
+	 * Traces a path from a program stored on the controller, uploading it first if needed.
+	 * The path is compiled into an ESP300 stored program (EP ... QP) the first time it is run;
+	 * later runs of the same path only send a single EX command, so repeated incisions cost
+	 * almost no serial traffic. Paths longer than PROGRAM_MAX_VERTICES are streamed instead.
+	 * @param path lines and arcs in mm; the mirror should already be at its start
+	 */
+	void runProgram(Trajectory path) {
+		runProgram(path, null);
+	}
+
+	/**
+	 * Runs a path like runProgram(path), but does not start it once stop returns true.
+	 * The controller executes a stored program on its own, so a run cannot be cut short from here. Instead stop
+	 * is polled while the program runs, until it first returns true, so the caller can act at once, e.g. by
+	 * closing the shutter; the program then finishes its pass before this returns.
+	 * @param stop polled before and during the run, or null
+	 */
+	void runProgram(Trajectory path, BooleanSupplier stop) {
+		int n = path.size();
+		if (n > PROGRAM_MAX_VERTICES) {
+			streamTo(path, stop);
+			return;
+		}
+		if (!confirmPath(path)) return;
+		checkNotBroken();
+		String[] lines = new String[n + 1];
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			lines[i] = encoder.reset().segment(path, i).append(";1HQ1").toString();	// queue segment, then wait for room for the next
+			text.append(lines[i]).append('\n');
+		}
+		lines[n] = "1HW";
+		text.append(lines[n]);
+		Integer program = programs.get(text.toString());
+		if (program == null) {
+			program = storeProgram(lines);
+			if (program == null) {
+				streamTo(path, stop);
+				return;
+			}
+			programs.put(text.toString(), program);
 		} else {
-			IJ.log("CANCELED MOVE TO POSITION "+IJ.d2s(x,2)+", "+IJ.d2s(y,2)+" mm.");
+			Log.info("\tPath already stored as program "+program);
+		}
+		if (stop != null && stop.getAsBoolean()) {
+			Log.warn("PROGRAM "+program+" NOT RUN, STOP REQUESTED.");
+			return;
 		}
+		double seconds = estimator().moveSeconds(path.length());
+		long t0 = System.nanoTime();
+		CommandBus.Command run = writeMirror(program+"EX;1HW;1HQ8;1HS?");
+		setTarget(path.getX(n-1), path.getY(n-1));
+		char stopped = status(waitForMirrorReply(run, seconds, seconds, stop), true);
+		CommandStats.record("EX", CommandStats.MOTION, System.nanoTime() - t0);
+		confirm(stopped);
+		if (Log.TRACE) Log.debug("\tReceived :\t "+stopped);
+	}
+
+	/**
+	 * Uploads a stored program, reusing the least recently used of the reserved program numbers.
+	 * @return the program number, or null if the controller reported an error
+	 */
+	private Integer storeProgram(String[] lines) {
+		int program;
+		if (programs.size() < PROGRAM_SLOTS) {
+			program = PROGRAM_FIRST + programs.size();
+		} else {
+			Iterator<Map.Entry<String, Integer>> eldest = programs.entrySet().iterator();
+			program = eldest.next().getValue();
+			eldest.remove();
+		}
+		Log.info("\tStoring path of "+(lines.length-1)+" segments as program "+program);
+		long t0 = System.nanoTime();
+		int bytes = 0;
+		sendMirror(program+"XX");		// erase whatever was stored under this number
+		sendMirror(program+"EP");
+		for (int i = 0; i < lines.length; i++) {
+			sendMirror(lines[i]);
+			bytes += lines[i].length() + 1;
+		}
+		String reply = waitForMirrorReply(writeMirror("QP;TB?"), estimator().serialSeconds(bytes));	// leave program mode, then read the error buffer to confirm
+		CommandStats.record("EP", CommandStats.REPLY, System.nanoTime() - t0);
+		if (reply == CommandBus.LOST) {
+			Log.warn("Storing program "+program+" was not confirmed; its error buffer reply was lost");
+			return null;
+		}
+		if (!reply.startsWith("0")) {
+			Log.error("Storing program "+program+" failed: "+reply);
+			return null;
+		}
+		return program;
+	}
+
+	/**
+	 * Asks the user to confirm paths that leave the visible area.
+	 * Arcs are checked at their end points and at the point of the arc farthest from home.
+	 * @return false if the user canceled
+	 */
+	private boolean confirmPath(Trajectory path) {
+		for (int i = 0; i < path.size(); i++) {
+			double x = path.getX(i), y = path.getY(i);
+			if (path.getType(i) == Trajectory.ARC && (Math.abs(x)<=2.0) && (Math.abs(y)<=2.0)) {
+				double cx = path.getCenterX(i), cy = path.getCenterY(i);
+				double sx = path.getSegmentStartX(i) - cx, sy = path.getSegmentStartY(i) - cy;
+				double r = Math.hypot(sx, sy);
+				double a0 = Math.atan2(sy, sx), sweep = Math.toRadians(path.getDegrees(i));
+				for (int k = 0; k < 4; k++) {	// the arc's extreme points lie on the axes through its center
+					double a = k * Math.PI / 2;
+					double d = sweep > 0 ? a - a0 : a0 - a;
+					d -= 2*Math.PI * Math.floor(d / (2*Math.PI));
+					if (d <= Math.abs(sweep) && (Math.abs(cx + r*Math.cos(a))>2.0 || Math.abs(cy + r*Math.sin(a))>2.0)) {
+						x = cx + r*Math.cos(a);
+						y = cy + r*Math.sin(a);
+						break;
+					}
+				}
+			}
+			if ((Math.abs(x)>2.0)||(Math.abs(y)>2.0)) {
+				if (!IJ.showMessageWithCancel("ARE YOU SURE?","Mirror path passes through "+IJ.d2s(x,2)+", "+IJ.d2s(y,2)+" which will be well off the visible area.")) {
+					Log.warn("CANCELED PATH THROUGH POSITION "+IJ.d2s(x,2)+", "+IJ.d2s(y,2)+" mm.");
+					return false;
+				}
+				return true;
+			}
+		}
+		return true;
 	}
 
 	void arcmoveTo(double x0, double y0, double degrees) {
-		writeMirror("1HC"+IJ.d2s(x0,6)+","+IJ.d2s(y0,6)+","+IJ.d2s(degrees,6)+";1HW;1HQ8;1HS?");
-		char stopped = waitForMirrorReply().charAt(0);
-		IJ.log("\tReceived :\t "+stopped);
+		checkNotBroken();
+		double r = distanceTo(x0, y0);
+		double seconds = estimator().moveSeconds(r * Math.abs(Math.toRadians(degrees)));
+		long t0 = System.nanoTime();
+		CommandBus.Command move = bus.command();
+		move.encoder().arc(x0, y0, degrees).append(";1HW;1HQ8;1HS?");
+		bus.send(move, "HC", CommandBus.STATUS);
+		double end = Math.atan2(y - y0, x - x0) + Math.toRadians(degrees);		// NaN if the start was unknown
+		setTarget(x0 + r*Math.cos(end), y0 + r*Math.sin(end));
+		char stopped = status(waitForMirrorReply(move, seconds), true);
+		CommandStats.record("HC", CommandStats.MOTION, System.nanoTime() - t0);
+		confirm(stopped);
+		if (Log.TRACE) Log.debug("\tReceived :\t "+stopped);
+	}
+
+	/**
+	 * @return an estimator for the velocity, acceleration and deceleration currently set on the controller
+	 */
+	MotionEstimator estimator() {
+		if (Double.isNaN(velocity))			// unknown, assume the slowest motion
+			return new MotionEstimator(MINVELOCITY, ACCELERATION, DECELERATION, BAUDRATE);
+		return new MotionEstimator(velocity, acceleration, deceleration, BAUDRATE);
+	}
+
+	private void setPosition(double x, double y) {
+		this.x = x;
+		this.y = y;
+	}
+
+	private void setTarget(double x, double y) {
+		this.targetX = x;
+		this.targetY = y;
+	}
+
+	/**
+	 * Takes the last commanded position as confirmed if the controller reported the group stopped.
+	 */
+	private void confirm(char stopped) {
+		if (stopped == '1') setPosition(targetX, targetY);
+		else setPosition(Double.NaN, Double.NaN);
+	}
+
+	/**
+	 * @param waited the command waited for the group to stop (1HW) before asking for its status
+	 * @return the first character of a status reply. A lost reply means the controller executed the command,
+	 * so the group stopped if the command waited for it; otherwise its status is unknown ('?').
+	 */
+	private static char status(String reply, boolean waited) {
+		if (reply == CommandBus.LOST) return waited ? '1' : '?';
+		return reply.charAt(0);
+	}
+
+	/**
+	 * @return true if the confirmed position is the given one, to the 6 decimals sent to the controller
+	 */
+	private boolean isAt(double x1, double y1) {
+		return Math.abs(x1 - x) < 5e-7 && Math.abs(y1 - y) < 5e-7;
+	}
+
+	/**
+	 * @return predicted time for the last commanded motion to finish: none once its end has been confirmed,
+	 * otherwise the time to reach it from the last confirmed position, or from anywhere in the visible area
+	 */
+	private double remainingSeconds() {
+		if (isAt(targetX, targetY)) return 0;
+		double d = Double.isNaN(targetX) || Double.isNaN(targetY) ? Math.hypot(4.0, 4.0) : distanceTo(targetX, targetY);
+		return estimator().moveSeconds(d);
+	}
+
+	/**
+	 * @return distance of a point from the current position, or a bound on it if the position is unknown
+	 */
+	private double distanceTo(double x1, double y1) {
+		if (Double.isNaN(x) || Double.isNaN(y))		// assume the group is somewhere in the visible area
+			return Math.hypot(Math.abs(x1) + 2.0, Math.abs(y1) + 2.0);
+		return Math.hypot(x1 - x, y1 - y);
+	}
+
+	/**
+	 * Waits for the reply to a query that answers with a value rather than a status.
+	 * @return the reply, trimmed, or "" if none arrived within the margin
+	 */
+	private String value(CommandBus.Command query) {
+		try {
+			String r = await(query, margin, null);
+			if (r != null && r != CommandBus.LOST) return r.trim();
+			bus.forget(query);
+			return "";
+		} finally {
+			bus.release(query);
+		}
+	}
+
+	/**
+	 * @return the number in a reply, NaN if there is none
+	 */
+	private static double number(String reply) {
+		try {
+			return Double.parseDouble(reply);
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Reads the shadow state from the controller. Motor power and positions are queried. Group 1 is taken to
+	 * exist when both motors are on, as this class only powers them on together with the group and deletes the
+	 * group before powering them off; its velocity, acceleration and deceleration are then read as well.
+	 */
+	private void resync() {
+		CommandBus.Command on1 = writeMirror("1MO?"), on2 = writeMirror("2MO?");		// all in flight at once
+		CommandBus.Command p1 = writeMirror("1TP"), p2 = writeMirror("2TP");
+		motorsOn = value(on1).startsWith("1") & value(on2).startsWith("1");
+		setPosition(number(value(p1)), number(value(p2)));
+		setTarget(x, y);
+		homeX = homeY = 0;
+		velocity = acceleration = deceleration = Double.NaN;
+		if (motorsOn) {
+			CommandBus.Command v = writeMirror("1HV?"), a = writeMirror("1HA?"), d = writeMirror("1HD?");
+			velocity = number(value(v));
+			acceleration = number(value(a));
+			deceleration = number(value(d));
+		}
+		Log.info("\tController state: motors "+(motorsOn ? "on" : "off")+", position "+IJ.d2s(x,6)+", "+IJ.d2s(y,6)
+				+(motorsOn ? ", velocity "+IJ.d2s(velocity,3) : ""));
 	}
 
 	void defineHome() {
-		writeMirror("1DH;2DH");			// Assign current position to 0,0
-		IJ.wait(500);
+		setNewHome(0, 0);			// Assign current position to 0,0
 	}
 
 	void setNewHome(double x, double y) {
-		writeMirror("1DH" + IJ.d2s(x,6) + "'" + "2DH" + IJ.d2s(y,6));
-		IJ.wait(500);
+		if (isAt(x, y)) {
+			if (Log.TRACE) Log.debug("\tHome already at "+IJ.d2s(x,6)+", "+IJ.d2s(y,6));
+			return;
+		}
+		if (x == 0 && y == 0)
+			writeAcknowledged("1DH;2DH", remainingSeconds());
+		else
+			writeAcknowledged("1DH" + IJ.d2s(x,6) + ";2DH" + IJ.d2s(y,6), remainingSeconds());
+		homeX += this.x - x;		// NaN from now on if the position was unknown
+		homeY += this.y - y;
+		setPosition(x, y);
+		setTarget(x, y);
+		Log.info("\tHome is now "+IJ.d2s(homeX,6)+", "+IJ.d2s(homeY,6)+" mm from the home at connect");
 	}
 	
 	void initializeMirror() {
 
-		IJ.log("Initializing Mirrors");
-		writeMirror("1MO;2MO;1HN1,2");			// Power on to motors 1&2, Assign motors 1&2 to Group 1
-		IJ.wait(200);
+		Log.info("Initializing Mirrors");
+		resync();
+		if (!motorsOn)
+			motorsOn = writeAcknowledged("1MO;2MO;1HN1,2", remainingSeconds());			// Power on to motors 1&2, Assign motors 1&2 to Group 1
 		this.setVelocity(MAXVELOCITY);
 	}
 
 	void finalizeMirror() {
-		writeMirror("1HW;1HX;1MF;2MF");		// Delete Group 1, Power off to motors 1&2
-		IJ.wait(200);
+		if (!motorsOn) return;
+		writeAcknowledged("1HW;1HX;1MF;2MF", remainingSeconds());		// Delete Group 1, Power off to motors 1&2
+		motorsOn = false;
+		velocity = acceleration = deceleration = Double.NaN;
+	}
+
+	/**
+	 * Sends configuration commands followed by an error buffer read, which the controller only answers once it has
+	 * applied them, and waits for that answer instead of sleeping for a fixed time.
+	 * @param seconds predicted time for motion still queued ahead of the commands to finish
+	 * @return false if the controller reported an error
+	 */
+	private boolean writeAcknowledged(String msg, double seconds) {
+		long t0 = System.nanoTime();
+		String reply = waitForMirrorReply(writeMirror(msg + ";TB?"), seconds);
+		CommandStats.record(CommandStats.mnemonic(msg), CommandStats.REPLY, System.nanoTime() - t0);
+		if (reply == CommandBus.LOST) {
+			Log.warn("Mirror controller applied "+msg+", but its error buffer reply was lost");
+			return true;
+		}
+		if (reply.startsWith("0")) return true;
+		Log.error("Mirror controller reported an error after "+msg+": "+reply);
+		return false;
 	}
 
 	/**
 	 * Sends message to mirror
-	 * @param msg message to be written
+	 * @param msg message to be written, answered by exactly one reply line
+	 * @return the command, to wait for its reply
 	 */
-    void writeMirror(String msg) {
+    CommandBus.Command writeMirror(String msg) {
+		CommandBus.Command c = bus.command();
+		c.encoder().append(msg);
+		bus.send(c, CommandStats.mnemonic(msg), CommandBus.replyKind(msg));
+		return c;
+	}
+
+	/**
+	 * Sends message to mirror
+	 * @param msg message to be written, which the controller does not answer
+	 */
+    void sendMirror(String msg) {
+		bus.write(msg);
+	}
+
+	/**
+	 * Blocks until the microcontroller sends a complete reply line, then releases the command.
+	 * The reply is expected within the predicted duration of the command, stretched by TIMEOUT_SCALE, plus the
+	 * margin. If it is late, the controller is probed (see CommandBus.probe()). Commands are executed in order,
+	 * so the probe is answered once the motion queued ahead of it has finished, which is allowed PROBE_TIMEOUT
+	 * beyond its predicted duration. A probe answer before the reply means the reply was lost. No answer means
+	 * the controller is hung: all outstanding requests are given up, and the mirror is broken from then on.
+	 * @param command sent to the controller
+	 * @param seconds predicted time from sending the command until its reply
+	 * @return the message from the device as a string, or CommandBus.LOST if the reply was lost after the
+	 * controller had executed the command
+	 * @throws IllegalArgumentException if the controller does not answer
+	 */
+	String waitForMirrorReply(CommandBus.Command command, double seconds) {
+		return waitForMirrorReply(command, seconds, seconds);
+	}
+
+	/**
+	 * @param queued predicted time for all motion sent so far to execute, from the oldest not known to have finished
+	 */
+	private String waitForMirrorReply(CommandBus.Command command, double seconds, double queued) {
+		return waitForMirrorReply(command, seconds, queued, null);
+	}
+
+	/**
+	 * @param stop polled while waiting until it first returns true, or null
+	 */
+	private String waitForMirrorReply(CommandBus.Command command, double seconds, double queued, BooleanSupplier stop) {
 		try {
-			IJ.log("\tSend: \t" + msg);
-			msg += "\r";	// add carriage return to indicate termination of command
-			mirrorPort.writeString(msg);
-		} catch (SerialPortException e) {
-			String error = "Mirror.openMirrorPort() failed.";
-			IJ.log(error);
-			try { mirrorPort.closePort(); } catch (SerialPortException e1) { }
-			throw new IllegalArgumentException(error);
+			long deadline = (long) Math.ceil(seconds * 1000 * TIMEOUT_SCALE) + margin;
+			String r = await(command, deadline, stop);
+			if (r == null) {
+				long probeTimeout = (long) Math.ceil(queued * 1000 * TIMEOUT_SCALE) + PROBE_TIMEOUT;
+				Log.warn("No reply from mirror controller within "+deadline+" ms (predicted "+IJ.d2s(seconds*1000,0)+" ms), probing it");
+				bus.probe();
+				r = await(command, probeTimeout, null);
+				if (r == null) {
+					IJ.beep();
+					Log.error("Mirror controller did not answer a probe within "+probeTimeout+" ms; it may be hung"
+							+" (last commanded position "+IJ.d2s(targetX,6)+", "+IJ.d2s(targetY,6)+")");
+					hung = true;
+					bus.reset();
+					throw new IllegalArgumentException("Mirror controller is not answering.");
+				}
+			}
+			if (r == CommandBus.LOST) Log.warn("Reply from mirror controller was lost; it has executed the command");
+			return r;
+		} finally {
+			bus.release(command);
 		}
 	}
 
 	/**
-	 * Uses an idle loop to wait until the microcontroller responds, or the timeout is reached.
-	 * @return the message from the device as a string, or "None received" if timeout without reply.
+	 * Waits up to the given time for a reply, showing the time waited in the status bar once it exceeds a second.
+	 * @param stop polled every STATUS_INTERVAL until it first returns true, or null
+	 * @return the reply, or null if none arrived in time or the request was given up
 	 */
-    String waitForMirrorReply() {
-		startTime = System.currentTimeMillis();
-		String reply;
+	private String await(CommandBus.Command command, long timeout, BooleanSupplier stop) {
+		long t0 = System.nanoTime();
+		long shown = 0;		// seconds in the status bar
 		while (true) {
-			long time = System.currentTimeMillis();
-			long elapsedTime = time-startTime;
-			IJ.showStatus("Waiting for reply: "+(time-startTime)/1000 + " seconds");
-			if (elapsedTime >= timeOut)	{
-				IJ.beep();
-				IJ.log("Program has reached timeout without Reply");
-				reply = "None received";
-				break;
+			long elapsedTime = (System.nanoTime() - t0) / 1000000L;
+			if (elapsedTime >= timeout) return null;
+			String r;
+			try {
+				r = bus.await(command, Math.min(STATUS_INTERVAL, timeout - elapsedTime));
+			} catch (IOException e) {
+				String error = "Mirror.writeMirror() failed.";
+				Log.error(error+" "+e.getMessage());
+				throw new IllegalArgumentException(error);
 			}
-			if (replyReceived) {
-				reply = returnedString;
-				break;
+			if (r != null || !bus.isPending(command)) return r;
+			if (stop != null && stop.getAsBoolean()) {
+				Log.warn("STOP REQUESTED, WAITING FOR THE MIRROR TO FINISH ITS PATH.");
+				stop = null;
+			}
+			long seconds = (System.nanoTime() - t0) / 1000000000L;
+			if (seconds > shown) {
+				shown = seconds;
+				IJ.showStatus("Waiting for reply: "+seconds + " seconds");
 			}
 		}
-		replyReceived = false;
-		return reply;
 	}
 
 	/**
-	 * Opens mirror port and its listener
+	 * Opens mirror port and the command bus that writes to it.
+	 * The port name "SIM" opens a simulated ESP300; see Transports for the other kinds of port.
 	 * @param portname 
 	 */
 	void openMirrorPort(String portname) {
-		IJ.log("Opening "+portname+" as Mirror Port");
-		mirrorPort = new SerialPort(portname);
+		Log.info("Opening "+portname+" as Mirror Port");
+		Transport mirrorPort;
 		try {
-			mirrorPort.openPort();
-			mirrorPort.setParams(	SerialPort.BAUDRATE_19200,	// see user manual to verify parameters
-					 				SerialPort.DATABITS_8,
-					 				SerialPort.STOPBITS_1,
-					 				SerialPort.PARITY_NONE);
-			mirrorPort.setEventsMask(SerialPort.MASK_RXCHAR);
-			mirrorPort.addEventListener(this);
-		} catch (SerialPortException e) {
+			if (Esp300Simulator.PORT_NAME.equalsIgnoreCase(portname))
+				mirrorPort = new Esp300Simulator();
+			else
+				mirrorPort = Transports.open(portname, BAUDRATE);
+		} catch (IOException e) {
 			String error = "Mirror.openMirrorPort() failed.";
-			IJ.log(error);
-			try { mirrorPort.closePort(); } catch (SerialPortException e1) { }
+			Log.error(error+" "+e.getMessage());
 			throw new IllegalArgumentException(error);
 		}
+		bus = new CommandBus(mirrorPort, REPLY_CAPACITY);
 	}
 
-    public void serialEvent(SerialPortEvent event) {
-        if (event.isRXCHAR() && event.getEventValue() > 0) { // If data is available and has bits...
-            try {
-                returnedString = mirrorPort.readString();
-                replyReceived = true;
-            } catch (SerialPortException ex) {
-				String error = "Mirror.serialEvent() failed.";
-				IJ.log(error);
-				try { mirrorPort.closePort(); } catch (SerialPortException e1) { }
-				throw new IllegalArgumentException(error);
-            }
-        }
-    }
-    
 	boolean mirrorStopped() {
-		writeMirror("1HQ8;1HS?");  		//Query if motors are stopped
-		char stopped = waitForMirrorReply().charAt(0);
-		IJ.log("\tReceived : \t"+stopped);
+		long t0 = System.nanoTime();
+		char stopped = status(waitForMirrorReply(writeMirror("1HQ8;1HS?"), 0), false);  		//Query if motors are stopped
+		CommandStats.record("HS", CommandStats.REPLY, System.nanoTime() - t0);
+		if (Log.TRACE) Log.debug("\tReceived : \t"+stopped);
 		return (stopped=='1');
 	}
 
@@ -0,0 +1,123 @@
+package laserj;
+
+/* Name: MotionEstimator.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Predicts how long mirror motions take.
+ * The ESP300 moves the group along each line or arc with a trapezoidal velocity profile: it accelerates at HA
+ * when starting from rest, cruises at HV, and decelerates at HD to stop. A single move (moveTo) starts and ends
+ * at rest; a streamed path or stored program only starts from rest at its first segment and stops after its last.
+ * On top of the motion, each command and its reply take 10 bit times per byte on the serial line.
+ * Estimates are made from the velocity, acceleration and deceleration last sent to the controller; the plugins add
+ * their own fixed delays (beeps, shutter settling, delays between repeated incisions).
+ */
+
+import laserj.path.Trajectory;
+
+public class MotionEstimator {
+
+	private static final int BITS_PER_BYTE = 10;
+	private static final int MOVE_COMMAND_BYTES = 36;	// "1HLx.xxxxxx,y.yyyyyy;1HW;1HQ8;1HS?\r"
+	private static final int SEGMENT_BYTES = 26;		// one streamed "1HLx.xxxxxx,y.yyyyyy;" or "1HC..." entry
+	private static final int REPLY_BYTES = 3;			// "1\r\n"
+
+	private final double velocity, acceleration, deceleration;
+	private final int baudrate;
+
+	/**
+	 * @param velocity HV, mm/s
+	 * @param acceleration HA, mm/s^2
+	 * @param deceleration HD, mm/s^2
+	 * @param baudrate of the mirror controller's serial line
+	 */
+	public MotionEstimator(double velocity, double acceleration, double deceleration, int baudrate) {
+		this.velocity = velocity;
+		this.acceleration = acceleration;
+		this.deceleration = deceleration;
+		this.baudrate = baudrate;
+	}
+
+	public double getVelocity() { return velocity; }
+	public double getAcceleration() { return acceleration; }
+	public double getDeceleration() { return deceleration; }
+
+	/**
+	 * Time to travel a segment with a trapezoidal velocity profile.
+	 * @param length path length in mm
+	 * @param v cruise velocity, mm/s
+	 * @param a acceleration, mm/s^2, used if the segment starts from rest
+	 * @param d deceleration, mm/s^2, used if the segment ends at rest
+	 * @return duration in s
+	 */
+	public static double profileSeconds(double length, double v, double a, double d, boolean fromRest, boolean toRest) {
+		if (length <= 0) return 0;
+		double da = fromRest ? v*v / (2*a) : 0;
+		double dd = toRest ? v*v / (2*d) : 0;
+		if (da + dd <= length)
+			return (fromRest ? v/a : 0) + (toRest ? v/d : 0) + (length - da - dd) / v;
+		if (fromRest && toRest) {			// triangular profile, cruise velocity never reached
+			double vp = Math.sqrt(2*length*a*d / (a + d));
+			return vp/a + vp/d;
+		}
+		return Math.sqrt(2*length / (fromRest ? a : d));
+	}
+
+	/**
+	 * @return time to send the given number of bytes over the serial line, s
+	 */
+	public double serialSeconds(int bytes) {
+		return bytes * BITS_PER_BYTE / (double) baudrate;
+	}
+
+	/**
+	 * @return time from sending a single move of the given length until its reply arrives, s
+	 */
+	public double moveSeconds(double length) {
+		return serialSeconds(MOVE_COMMAND_BYTES) + profileSeconds(length, velocity, acceleration, deceleration, true, true)
+				+ serialSeconds(REPLY_BYTES);
+	}
+
+	/**
+	 * Predicts when each segment of a streamed path ends. Segments are sent ahead of the motion, so only the
+	 * first segment's transmit time delays the start; the group starts from rest and stops after the last segment.
+	 * Motion is simulated segment by segment with the profile above, which is exact for a single segment and,
+	 * like the controller, does not slow down at corners between segments.
+	 */
+	public Schedule schedule(Trajectory path) {
+		int n = path.size();
+		double[] end = new double[n];
+		double t = serialSeconds(SEGMENT_BYTES);
+		for (int i = 0; i < n; i++) {
+			t += profileSeconds(path.length(i), velocity, acceleration, deceleration, i == 0, i == n - 1);
+			end[i] = t;
+		}
+		return new Schedule(end, t + serialSeconds(REPLY_BYTES));
+	}
+
+	/**
+	 * Predicted timing of a path: when each segment ends, relative to sending the first one.
+	 */
+	public static class Schedule {
+		private final double[] end;
+		private final double total;
+
+		Schedule(double[] end, double total) {
+			this.end = end;
+			this.total = total;
+		}
+
+		public int size() { return end.length; }
+
+		/** @return time at which segment i ends, s */
+		public double getEnd(int i) { return end[i]; }
+
+		/** @return time at which segment i starts, s */
+		public double getStart(int i) { return i == 0 ? 0 : end[i-1]; }
+
+		/** @return time until the path is finished and confirmed, s */
+		public double getTotal() { return total; }
+	}
+
+}
@@ -0,0 +1,110 @@
+package laserj;
+
+/* Name: ReplyBuffer.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Reassembles the byte stream from a serial port into complete reply lines.
+ * The ESP300 terminates every reply with a carriage return and line feed, but the serial driver hands over
+ * whatever bytes happen to be available: a reply may arrive split over several events, or several replies
+ * may arrive in one. Bytes are collected in a fixed ring buffer and each complete line is queued, in order,
+ * for the thread waiting on the reply, or handed to lineReceived() by subclasses that dispatch lines themselves.
+ * Single-digit lines, the status replies that acknowledge every move, are shared constants.
+ */
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class ReplyBuffer {
+
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+
+	private final byte[] ring;
+	private final int mask;
+	private int head = 0;		// index of first byte of the partial line
+	private int count = 0;		// number of bytes of the partial line
+	private final char[] line;	// scratch space used to decode one line
+	private static final String[] DIGITS = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9"};	// status replies, without allocating
+
+	private final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+
+	/**
+	 * @param capacity longest reply line that can be held, rounded up to a power of two
+	 */
+	public ReplyBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+		ring = new byte[size];
+		mask = size - 1;
+		line = new char[size];
+	}
+
+	/**
+	 * Appends received bytes, queueing every line completed by them.
+	 * If a line is longer than the buffer, its oldest bytes are dropped.
+	 * @param data bytes as received from the port
+	 */
+	public synchronized void put(byte[] data) {
+		put(data, 0, data.length);
+	}
+
+	public synchronized void put(byte[] data, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			byte b = data[i];
+			if (b == LF) {
+				emitLine();
+			} else {
+				if (count == ring.length) {		// overflow, drop oldest byte
+					head = (head + 1) & mask;
+					count--;
+				}
+				ring[(head + count) & mask] = b;
+				count++;
+			}
+		}
+	}
+
+	private void emitLine() {
+		int n = count;
+		if (n > 0 && ring[(head + n - 1) & mask] == CR) n--;	// strip CR of the CR/LF terminator
+		for (int i = 0; i < n; i++)
+			line[i] = (char) (ring[(head + i) & mask] & 0xFF);
+		head = (head + count) & mask;
+		count = 0;
+		if (n == 1 && line[0] >= '0' && line[0] <= '9') lineReceived(DIGITS[line[0] - '0']);
+		else lineReceived(new String(line, 0, n));
+	}
+
+	/**
+	 * Called with each complete line, without its terminator, on the thread that put the bytes.
+	 * Queues the line for take().
+	 */
+	protected void lineReceived(String reply) {
+		lines.offer(reply);
+	}
+
+	/**
+	 * Waits for the next complete reply line.
+	 * @param timeout maximum time to wait in ms
+	 * @return the line without its terminator, or null if none arrived in time
+	 */
+	public String take(long timeout) throws InterruptedException {
+		return lines.poll(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Discards queued lines and any partially received line.
+	 */
+	public synchronized void clear() {
+		lines.clear();
+		head = 0;
+		count = 0;
+	}
+
+	public int pending() {
+		return lines.size();
+	}
+
+}
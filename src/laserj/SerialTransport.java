@@ -0,0 +1,88 @@
+package laserj;
+
+/* Name: SerialTransport.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Transport over a serial port (8 data bits, 1 stop bit, no parity).
+ * Writes are coalesced up to the end of each command line, so every command is a single driver call.
+ * jSSC only writes whole arrays, so each command is copied into an array of exactly its length; these are kept
+ * and reused, so that sending commands does not allocate.
+ * See the open-source java-simple-serial-connector (jSSC) https://code.google.com/p/java-simple-serial-connector/
+ * for details on the implementation of the communication over the serial port.
+ */
+
+import java.io.IOException;
+
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+
+public class SerialTransport extends AbstractTransport implements SerialPortEventListener {
+
+	private static final int COALESCE_SIZE = 256;
+
+	private final SerialPort port;
+	private final byte[][] exact = new byte[COALESCE_SIZE + 1][];	// reusable arrays, indexed by length
+
+	/**
+	 * @param portname e.g. "COM11"
+	 * @param baudrate e.g. SerialPort.BAUDRATE_19200
+	 */
+	public SerialTransport(String portname, int baudrate) throws IOException {
+		super(COALESCE_SIZE);
+		port = new SerialPort(portname);
+		try {
+			port.openPort();
+			port.setParams(	baudrate,	// see user manual to verify parameters
+							SerialPort.DATABITS_8,
+							SerialPort.STOPBITS_1,
+							SerialPort.PARITY_NONE);
+			port.setEventsMask(SerialPort.MASK_RXCHAR);
+			port.addEventListener(this);
+		} catch (SerialPortException e) {
+			try { port.closePort(); } catch (SerialPortException e1) { }
+			throw new IOException("Cannot open "+portname+": "+e.getMessage());
+		}
+	}
+
+	protected void send(byte[] data, int off, int len) throws IOException {
+		try {
+			if (off != 0 || len != data.length) {
+				byte[] part = len < exact.length ? exact[len] : null;
+				if (part == null) {
+					part = new byte[len];
+					if (len < exact.length) exact[len] = part;
+				}
+				System.arraycopy(data, off, part, 0, len);
+				data = part;
+			}
+			port.writeBytes(data);
+		} catch (SerialPortException e) {
+			throw new IOException("Write to "+port.getPortName()+" failed: "+e.getMessage());
+		}
+	}
+
+	public void close() {
+		try { port.closePort(); } catch (SerialPortException e1) { }
+	}
+
+	public String getName() {
+		return port.getPortName();
+	}
+
+	public void serialEvent(SerialPortEvent event) {
+		if (event.isRXCHAR() && event.getEventValue() > 0) { // If data is available and has bits...
+			try {
+				byte[] received = port.readBytes();
+				if (received != null) deliver(received, 0, received.length);
+			} catch (SerialPortException ex) {
+				Log.error("Read from "+port.getPortName()+" failed.");
+				close();
+			}
+		}
+	}
+
+}
@@ -12,21 +12,34 @@ package laserj;
  * See the documentation for the UniBlitz D122 Shutter Driver and the open-source 
  * java-simple-serial-connector (jSSC) https://code.google.com/p/java-simple-serial-connector/
  * for details on the implementation of the communication between the host computer and the shutter driver.
+ * The D122 never replies, so the time a command takes effect is predicted from the 300 baud line and the
+ * configured settle time for the blades. open() returns as soon as the command is written: the blades close the
+ * same delay after close() is sent, so the time between the two calls is the exposure. close() returns once the
+ * blades have closed, so the mirror never moves while the beam may still be on.
 */
 
-import jssc.SerialPort;
-import jssc.SerialPortException;
+import java.io.IOException;
 
-import ij.*;
+import ij.IJ;
+import jssc.SerialPort;
+import laserj.sim.D122Simulator;
 
 public class Shutter {
 	
-    private static SerialPort shutterPort;
+    private Transport shutterPort;
+    private final long settle;		// ms for the blades to move once the driver has the command
+    private volatile boolean failed = false;
+    private long switchedAt = 0;		// System.nanoTime() at which the last command takes effect
 
     private static final String openString = "@\n";
     private static final String closeString = "A\n";
+    private static final int BAUDRATE = SerialPort.BAUDRATE_300;
 
-    public Shutter(String portname) {
+    /**
+     * @param settle ms for the shutter blades to move once the driver has received a command
+     */
+    public Shutter(String portname, long settle) {
+        this.settle = settle;
         openShutterPort(portname);
     }
 
@@ -36,37 +49,68 @@ public class Shutter {
 
     public void close() {
         writeShutter(closeString);
+        awaitSwitched();
+    }
+
+    /**
+     * Blocks until the last command sent has taken effect.
+     */
+    public void awaitSwitched() {
+        long remaining = (switchedAt - System.nanoTime()) / 1000000L;
+        if (remaining > 0) IJ.wait((int) remaining);
     }
 
     protected void off() {
-    	this.close();
-    	try { shutterPort.closePort(); } catch (SerialPortException e1) { }
+    	try {
+    		if (!failed) this.close();
+    	} finally {
+    		shutterPort.close();
+    	}
+    }
+
+    /**
+     * @return true once a write has failed and the port has been closed
+     */
+    boolean isBroken() {
+        return failed;
+    }
+
+    /**
+     * @return time from sending a command until the shutter has switched, s
+     */
+    public double getSwitchSeconds() {
+        return openString.length() * 10.0 / BAUDRATE + settle / 1000.0;
     }
 
+    /**
+     * Opens shutter port. The port name "SIM" opens a simulated D122; see Transports for the other kinds of port.
+     */
     void openShutterPort(String portname) {
-    	IJ.log("Opening "+portname+" as Shutter Port");
-    	shutterPort = new SerialPort(portname);
+    	Log.info("Opening "+portname+" as Shutter Port");
     	try {
-        	shutterPort.openPort();
-			shutterPort.setParams(	SerialPort.BAUDRATE_300,	// see user manual to verify parameters
-			            		 	SerialPort.DATABITS_8,
-			            		 	SerialPort.STOPBITS_1,
-			            		 	SerialPort.PARITY_NONE);
-		} catch (SerialPortException e) {
+    		if (D122Simulator.PORT_NAME.equalsIgnoreCase(portname))
+    			shutterPort = new D122Simulator();
+    		else
+    			shutterPort = Transports.open(portname, BAUDRATE);	// see user manual to verify parameters
+		} catch (IOException e) {
 			String error = "Shutter.openShutterPort() failed.";
-			IJ.log(error);
-			try { shutterPort.closePort(); } catch (SerialPortException e1) { }
+			Log.error(error+" "+e.getMessage());
 			throw new IllegalArgumentException(error);
 		}
     }
 
     void writeShutter(String msg) {
         try {
-			shutterPort.writeString(msg);
-		} catch (SerialPortException e) {
+			long t0 = System.nanoTime();
+			byte[] bytes = msg.getBytes();
+			shutterPort.write(bytes, 0, bytes.length);
+			CommandStats.record(msg.equals(openString) ? "OPEN" : "CLOSE", CommandStats.WRITE, System.nanoTime() - t0);
+			switchedAt = t0 + (long) (getSwitchSeconds() * 1e9);
+		} catch (IOException e) {
 			String error = "Shutter.writeShutter() failed.";
-			IJ.log(error);
-			try { shutterPort.closePort(); } catch (SerialPortException e1) { }
+			Log.error(error+" "+e.getMessage());
+			failed = true;
+			shutterPort.close();
 			throw new IllegalArgumentException(error);
 		}
     }
@@ -0,0 +1,73 @@
+package laserj;
+
+/* Name: TcpTransport.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Transport over a TCP connection, e.g. to a serial-to-Ethernet bridge in front of the device,
+ * or to a local stand-in such as laserj.sim.SimServer.
+ * Nagle's algorithm is disabled so that short commands are not held back by the network stack; instead writes
+ * are coalesced here up to the end of each command line, so every command goes out as a single packet.
+ */
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+public class TcpTransport extends AbstractTransport {
+
+	private static final int COALESCE_SIZE = 1024;
+	private static final int CONNECT_TIMEOUT = 2000;	// ms
+
+	private final Socket socket;
+	private final OutputStream out;
+	private final String name;
+
+	/**
+	 * @param host host name or address of the bridge
+	 * @param port TCP port of the bridge
+	 */
+	public TcpTransport(String host, int port) throws IOException {
+		super(COALESCE_SIZE);
+		name = "tcp://" + host + ":" + port;
+		socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			out = socket.getOutputStream();
+		} catch (IOException e) {
+			socket.close();
+			throw new IOException("Cannot connect to "+name+": "+e.getMessage());
+		}
+		final InputStream in = socket.getInputStream();
+		Thread reader = new Thread("Transport reader " + name) {
+			public void run() {
+				byte[] data = new byte[1024];
+				try {
+					int n;
+					while ((n = in.read(data)) > 0)
+						deliver(data, 0, n);
+				} catch (IOException e) {
+					if (!socket.isClosed()) Log.error("Read from "+name+" failed: "+e.getMessage());
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	protected void send(byte[] data, int off, int len) throws IOException {
+		out.write(data, off, len);
+		out.flush();
+	}
+
+	public void close() {
+		try { socket.close(); } catch (IOException e) { }
+	}
+
+	public String getName() {
+		return name;
+	}
+
+}
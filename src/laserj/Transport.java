@@ -0,0 +1,32 @@
+package laserj;
+
+/* Name: Transport.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: A byte link between the host computer and a device (mirror controller or shutter driver).
+ * The mirror and shutter only write bytes and receive bytes through this interface, so the link can be a
+ * serial port or a simulated device.
+ */
+
+import java.io.IOException;
+
+public interface Transport {
+
+	/**
+	 * Receives bytes from the device, on a thread owned by the transport.
+	 */
+	interface Listener {
+		void received(byte[] data, int off, int len);
+	}
+
+	void setListener(Listener listener);
+
+	void write(byte[] data, int off, int len) throws IOException;
+
+	void close();
+
+	String getName();
+
+}
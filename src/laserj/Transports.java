@@ -0,0 +1,51 @@
+package laserj;
+
+/* Name: Transports.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Opens the transport described by a port entry of the microbeam config file:
+ *   COM11              serial port at the device's default baud rate
+ *   COM11:9600         serial port at the given baud rate
+ *   tcp://host:port    TCP connection, e.g. to a serial-to-Ethernet bridge
+ *   loop:name          in-memory loopback to a stand-in device in the same process
+ * The simulated devices ("SIM") are handled by Mirror and Shutter themselves, since they depend on the device.
+ */
+
+import java.io.IOException;
+
+public class Transports {
+
+	private Transports() { }
+
+	/**
+	 * @param spec port entry from the config file
+	 * @param baudrate baud rate used for serial ports that do not give one
+	 */
+	public static Transport open(String spec, int baudrate) throws IOException {
+		if (spec.startsWith("tcp://")) {
+			String address = spec.substring("tcp://".length());
+			int colon = address.lastIndexOf(':');
+			if (colon < 0) throw new IOException("No port number in "+spec);
+			try {
+				return new TcpTransport(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad port number in "+spec);
+			}
+		}
+		if (spec.startsWith("loop:"))
+			return LoopbackTransport.host(spec.substring("loop:".length()));
+		int colon = spec.indexOf(':');
+		if (colon > 0) {
+			try {
+				baudrate = Integer.parseInt(spec.substring(colon + 1));
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad baud rate in "+spec);
+			}
+			spec = spec.substring(0, colon);
+		}
+		return new SerialTransport(spec, baudrate);
+	}
+
+}
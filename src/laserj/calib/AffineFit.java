@@ -0,0 +1,169 @@
+package laserj.calib;
+
+/* Name: AffineFit.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Robust fit of an affine map (u, v) -> (m1, m2) to point correspondences.
+ *   m1 = a11*u + a12*v + b1
+ *   m2 = a21*u + a22*v + b2
+ * RANSAC draws random triples of correspondences, solves the map through them exactly, and keeps the map that
+ * explains the most correspondences within a tolerance. The result is then refined by least squares over those
+ * inliers, so spots that were missed, merged or matched to the wrong grid point do not bias the calibration.
+ */
+
+import java.util.Random;
+
+public class AffineFit {
+
+	private final double[] coefficients;	// a11, a12, b1, a21, a22, b2
+	private final boolean[] inliers;
+	private final double rms;
+
+	private AffineFit(double[] coefficients, boolean[] inliers, double rms) {
+		this.coefficients = coefficients;
+		this.inliers = inliers;
+		this.rms = rms;
+	}
+
+	/**
+	 * @param tolerance largest distance in (m1, m2) of an inlier from the fitted map
+	 * @param iterations number of random triples to try
+	 * @return the fit, or null if fewer than 3 correspondences are consistent with any map
+	 */
+	public static AffineFit ransac(double[] u, double[] v, double[] m1, double[] m2, int n, double tolerance, int iterations) {
+		if (n < 3) return null;
+		Random random = new Random(n);		// reproducible for a given data set
+		double tol2 = tolerance * tolerance;
+		boolean[] best = null;
+		int bestCount = 2;
+		boolean[] inside = new boolean[n];
+		for (int it = 0; it < iterations; it++) {
+			int i = random.nextInt(n), j = random.nextInt(n), k = random.nextInt(n);
+			if (i == j || j == k || i == k) continue;
+			double[] c = leastSquares(u, v, m1, m2, n, new int[] {i, j, k});
+			if (c == null) continue;
+			int count = classify(c, u, v, m1, m2, n, tol2, inside);
+			if (count > bestCount) {
+				bestCount = count;
+				best = inside.clone();
+			}
+		}
+		if (best == null) return null;
+
+		// refine by least squares on the inliers, then reclassify once with the refined map
+		double[] c = fitInliers(u, v, m1, m2, n, best);
+		if (c == null) return null;
+		classify(c, u, v, m1, m2, n, tol2, inside);
+		double[] refined = fitInliers(u, v, m1, m2, n, inside);
+		if (refined != null) c = refined;
+		else inside = best;
+
+		double sum = 0;
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (!inside[i]) continue;
+			double e1 = c[0]*u[i] + c[1]*v[i] + c[2] - m1[i], e2 = c[3]*u[i] + c[4]*v[i] + c[5] - m2[i];
+			sum += e1*e1 + e2*e2;
+			count++;
+		}
+		return new AffineFit(c, inside, Math.sqrt(sum / count));
+	}
+
+	private static int classify(double[] c, double[] u, double[] v, double[] m1, double[] m2, int n, double tol2, boolean[] inside) {
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			double e1 = c[0]*u[i] + c[1]*v[i] + c[2] - m1[i], e2 = c[3]*u[i] + c[4]*v[i] + c[5] - m2[i];
+			inside[i] = e1*e1 + e2*e2 <= tol2;
+			if (inside[i]) count++;
+		}
+		return count;
+	}
+
+	private static double[] fitInliers(double[] u, double[] v, double[] m1, double[] m2, int n, boolean[] inside) {
+		int count = 0;
+		for (int i = 0; i < n; i++) if (inside[i]) count++;
+		int[] index = new int[count];
+		for (int i = 0, j = 0; i < n; i++) if (inside[i]) index[j++] = i;
+		return leastSquares(u, v, m1, m2, n, index);
+	}
+
+	/**
+	 * Solves the normal equations for the correspondences listed in index.
+	 * @return the coefficients, or null if the points are collinear
+	 */
+	private static double[] leastSquares(double[] u, double[] v, double[] m1, double[] m2, int n, int[] index) {
+		if (index.length < 3) return null;
+		double suu = 0, suv = 0, svv = 0, su = 0, sv = 0, s1 = 0;
+		double su1 = 0, sv1 = 0, s11 = 0, su2 = 0, sv2 = 0, s12 = 0;
+		for (int k = 0; k < index.length; k++) {
+			int i = index[k];
+			suu += u[i]*u[i]; suv += u[i]*v[i]; svv += v[i]*v[i];
+			su += u[i]; sv += v[i]; s1 += 1;
+			su1 += u[i]*m1[i]; sv1 += v[i]*m1[i]; s11 += m1[i];
+			su2 += u[i]*m2[i]; sv2 += v[i]*m2[i]; s12 += m2[i];
+		}
+		double[][] a = {{suu, suv, su}, {suv, svv, sv}, {su, sv, s1}};
+		double det = det3(a);
+		double scale = Math.max(Math.abs(suu*svv*s1), 1e-300);
+		if (Math.abs(det) < 1e-10 * scale) return null;
+		double[] r1 = solve3(a, det, su1, sv1, s11);
+		double[] r2 = solve3(a, det, su2, sv2, s12);
+		return new double[] {r1[0], r1[1], r1[2], r2[0], r2[1], r2[2]};
+	}
+
+	private static double det3(double[][] a) {
+		return a[0][0]*(a[1][1]*a[2][2] - a[1][2]*a[2][1])
+			- a[0][1]*(a[1][0]*a[2][2] - a[1][2]*a[2][0])
+			+ a[0][2]*(a[1][0]*a[2][1] - a[1][1]*a[2][0]);
+	}
+
+	// Cramer's rule
+	private static double[] solve3(double[][] a, double det, double b0, double b1, double b2) {
+		double[] x = new double[3];
+		double[] b = {b0, b1, b2};
+		for (int col = 0; col < 3; col++) {
+			double[][] m = new double[3][];
+			for (int row = 0; row < 3; row++) {
+				m[row] = a[row].clone();
+				m[row][col] = b[row];
+			}
+			x[col] = det3(m) / det;
+		}
+		return x;
+	}
+
+	/**
+	 * @return {a11, a12, b1, a21, a22, b2}
+	 */
+	public double[] getCoefficients() {
+		return coefficients.clone();
+	}
+
+	public boolean isInlier(int i) {
+		return inliers[i];
+	}
+
+	public int getInlierCount() {
+		int count = 0;
+		for (int i = 0; i < inliers.length; i++) if (inliers[i]) count++;
+		return count;
+	}
+
+	/**
+	 * @return root mean square distance of the inliers from the fitted map
+	 */
+	public double getRms() {
+		return rms;
+	}
+
+	public double map1(double u, double v) {
+		return coefficients[0]*u + coefficients[1]*v + coefficients[2];
+	}
+
+	public double map2(double u, double v) {
+		return coefficients[3]*u + coefficients[4]*v + coefficients[5];
+	}
+
+}
@@ -0,0 +1,144 @@
+package laserj.calib;
+
+/* Name: CalibrationModel.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Mapping from image pixels to mirror positions (mm).
+ * Pixel positions are measured from the image center and divided by the digital zoom, giving (u, v) in pixels
+ * of the unzoomed image. The mirror position is then
+ *   axis 1 = c1X*u + c1Y*v + offset1 + distortion1(u, v)
+ *   axis 2 = c2X*u + c2Y*v + offset2 + distortion2(u, v)
+ * where the optional distortion is a polynomial of degree 2 or 3 in (u, v), correcting the nonlinearity of the
+ * mirror at the edges of the field. Its coefficients are given in the order of POLYNOMIAL_TERMS.
+ * Models are immutable; compile() precomputes a PixelTransform for one image size and zoom.
+ */
+
+import java.util.Arrays;
+
+public final class CalibrationModel {
+
+	public static final String[] POLYNOMIAL_TERMS = {"uu", "uv", "vv", "uuu", "uuv", "uvv", "vvv"};
+	static final int QUADRATIC_TERMS = 3, CUBIC_TERMS = 7;
+
+	final double c1X, c1Y, c2X, c2Y;
+	final double offset1, offset2;
+	final double[] poly1, poly2;
+
+	/**
+	 * Linear model, as in the original microbeam config.
+	 */
+	public CalibrationModel(double c1X, double c1Y, double c2X, double c2Y) {
+		this(c1X, c1Y, c2X, c2Y, 0, 0, null, null);
+	}
+
+	/**
+	 * @param poly1 distortion coefficients for axis 1: none, 3 (quadratic) or 7 (cubic), or null
+	 * @param poly2 distortion coefficients for axis 2, of the same length as poly1
+	 */
+	public CalibrationModel(double c1X, double c1Y, double c2X, double c2Y, double offset1, double offset2,
+			double[] poly1, double[] poly2) {
+		if (poly1 == null) poly1 = new double[0];
+		if (poly2 == null) poly2 = new double[0];
+		if (poly1.length != poly2.length || (poly1.length != 0 && poly1.length != QUADRATIC_TERMS && poly1.length != CUBIC_TERMS))
+			throw new IllegalArgumentException("Calibration distortion needs 0, 3 or 7 coefficients per axis.");
+		this.c1X = c1X;
+		this.c1Y = c1Y;
+		this.c2X = c2X;
+		this.c2Y = c2Y;
+		this.offset1 = offset1;
+		this.offset2 = offset2;
+		this.poly1 = poly1.clone();
+		this.poly2 = poly2.clone();
+	}
+
+	/**
+	 * @return a copy of this model with a new linear part, keeping the offset and distortion
+	 */
+	public CalibrationModel withLinear(double c1X, double c1Y, double c2X, double c2Y) {
+		return new CalibrationModel(c1X, c1Y, c2X, c2Y, offset1, offset2, poly1, poly2);
+	}
+
+	/**
+	 * @return a copy of this model with a new linear part and offset, keeping the distortion
+	 */
+	public CalibrationModel withAffine(double c1X, double c1Y, double c2X, double c2Y, double offset1, double offset2) {
+		return new CalibrationModel(c1X, c1Y, c2X, c2Y, offset1, offset2, poly1, poly2);
+	}
+
+	public PixelTransform compile(int width, int height, int zoom) {
+		return new PixelTransform(this, width, height, zoom);
+	}
+
+	/**
+	 * @return {c1X, c1Y, c2X, c2Y}
+	 */
+	public double[] getLinear() {
+		return new double[] {c1X, c1Y, c2X, c2Y};
+	}
+
+	public double getOffset1() { return offset1; }
+	public double getOffset2() { return offset2; }
+	public double[] getPolynomial1() { return poly1.clone(); }
+	public double[] getPolynomial2() { return poly2.clone(); }
+
+	/**
+	 * @param u pixels from the image center, unzoomed
+	 * @return the distortion term of axis 1 at (u, v), mm
+	 */
+	public double distortion1(double u, double v) {
+		return PixelTransform.distortion(poly1, u, v);
+	}
+
+	public double distortion2(double u, double v) {
+		return PixelTransform.distortion(poly2, u, v);
+	}
+
+	public boolean hasDistortion() {
+		return poly1.length > 0;
+	}
+
+	/**
+	 * @return mm of mirror travel per unzoomed pixel, averaged over directions
+	 */
+	public double getScale() {
+		return Math.sqrt(Math.abs(c1X*c2Y - c1Y*c2X));
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof CalibrationModel)) return false;
+		CalibrationModel m = (CalibrationModel) o;
+		return c1X == m.c1X && c1Y == m.c1Y && c2X == m.c2X && c2Y == m.c2Y && offset1 == m.offset1
+				&& offset2 == m.offset2 && Arrays.equals(poly1, m.poly1) && Arrays.equals(poly2, m.poly2);
+	}
+
+	public int hashCode() {
+		return Arrays.hashCode(new double[] {c1X, c1Y, c2X, c2Y, offset1, offset2}) + 31*Arrays.hashCode(poly1);
+	}
+
+	/**
+	 * Formats distortion coefficients for the config file, e.g. "1.0E-9,0.0,2.5E-9".
+	 */
+	public static String formatPolynomial(double[] poly) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < poly.length; i++) {
+			if (i > 0) sb.append(',');
+			sb.append(poly[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @throws NumberFormatException if a coefficient is not a number
+	 */
+	public static double[] parsePolynomial(String s) {
+		s = s.trim();
+		if (s.isEmpty() || s.equals("-")) return new double[0];
+		String[] tokens = s.split(",");
+		double[] poly = new double[tokens.length];
+		for (int i = 0; i < tokens.length; i++) poly[i] = Double.parseDouble(tokens[i].trim());
+		return poly;
+	}
+
+}
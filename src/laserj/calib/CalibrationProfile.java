@@ -0,0 +1,148 @@
+package laserj.calib;
+
+/* Name: CalibrationProfile.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Calibration for one objective and digital zoom.
+ * Each objective images the field with its own scale and shifts the beam by its own amount, so a profile holds
+ * its own microns per pixel and its own calibration model, including the offset of the image center in mirror
+ * mm. The model maps pixels of images taken with this objective and zoom directly, without further division by
+ * the zoom. Transforms are compiled when the profile is made, for the image size it was calibrated with, and
+ * cached for any other size, so switching profiles costs nothing.
+ * In the microbeam config file a profile is one entry:
+ *   profile.name = magnification zoom width height microns-per-pixel c1X c1Y c2X c2Y offset1 offset2 [d1 d2]
+ * where the optional d1 and d2 are the comma-separated distortion coefficients of each axis, so every objective
+ * keeps its own correction of the nonlinearity at the edges of the field.
+ */
+
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class CalibrationProfile {
+
+	public static final String KEYWORD = "profile";
+
+	private final String name;
+	private final int magnification, zoom, width, height;
+	private final double micronsPerPixel;
+	private final CalibrationModel model;
+	private final ConcurrentHashMap<Long, PixelTransform> transforms = new ConcurrentHashMap<Long, PixelTransform>();
+
+	public CalibrationProfile(String name, int magnification, int zoom, int width, int height, double micronsPerPixel,
+			CalibrationModel model) {
+		this.name = name;
+		this.magnification = magnification;
+		this.zoom = zoom;
+		this.width = width;
+		this.height = height;
+		this.micronsPerPixel = micronsPerPixel;
+		this.model = model;
+		getTransform(width, height);
+	}
+
+	/**
+	 * @return a copy of this profile with a new calibration model
+	 */
+	public CalibrationProfile withModel(CalibrationModel m) {
+		return new CalibrationProfile(name, magnification, zoom, width, height, micronsPerPixel, m);
+	}
+
+	/**
+	 * @return the transform for images of the given size, compiled once per size
+	 */
+	public PixelTransform getTransform(int w, int h) {
+		Long key = ((long) w << 32) | h;
+		PixelTransform t = transforms.get(key);
+		if (t == null) {
+			t = model.compile(w, h, 1);
+			PixelTransform prev = transforms.putIfAbsent(key, t);
+			if (prev != null) t = prev;
+		}
+		return t;
+	}
+
+	/**
+	 * @param pixelWidth image pixel size in microns
+	 * @return true if pixelWidth agrees with this profile's scale within 2%
+	 */
+	public boolean matchesPixelSize(double pixelWidth) {
+		return Math.abs(pixelWidth - micronsPerPixel) <= 0.02 * micronsPerPixel;
+	}
+
+	public String getName() { return name; }
+	public int getMagnification() { return magnification; }
+	public int getZoom() { return zoom; }
+	public int getWidth() { return width; }
+	public int getHeight() { return height; }
+	public double getMicronsPerPixel() { return micronsPerPixel; }
+	public CalibrationModel getModel() { return model; }
+
+	public String toString() {
+		return name+" ("+magnification+"x, zoom "+zoom+")";
+	}
+
+	/**
+	 * Parses a profile line of the original positional config file:
+	 *   profile  name  magnification  zoom  width  height  microns-per-pixel  c1X  c1Y  c2X  c2Y  offset1  offset2  [d1  d2]
+	 * @throws IllegalArgumentException if the line is not a valid profile
+	 */
+	public static CalibrationProfile parse(String line) {
+		StringTokenizer st = new StringTokenizer(line);
+		if (!st.hasMoreTokens() || !KEYWORD.equals(st.nextToken()) || !st.hasMoreTokens())
+			throw new IllegalArgumentException("Not a calibration profile: "+line);
+		String name = st.nextToken();
+		StringBuilder fields = new StringBuilder();
+		while (st.hasMoreTokens()) fields.append(st.nextToken()).append(' ');
+		return parse(name, fields.toString());
+	}
+
+	/**
+	 * Parses the fields of a profile, as written by formatFields().
+	 * @param fields magnification, zoom, width, height, microns-per-pixel, c1X, c1Y, c2X, c2Y, offset1, offset2,
+	 * and optionally the distortion coefficients of axis 1 and axis 2
+	 * @throws IllegalArgumentException if a field is missing or not a number
+	 */
+	public static CalibrationProfile parse(String name, String fields) {
+		StringTokenizer st = new StringTokenizer(fields);
+		try {
+			int mag = Integer.parseInt(st.nextToken());
+			int zoom = Integer.parseInt(st.nextToken());
+			int width = Integer.parseInt(st.nextToken());
+			int height = Integer.parseInt(st.nextToken());
+			double mpp = Double.parseDouble(st.nextToken());
+			double c1X = Double.parseDouble(st.nextToken());
+			double c1Y = Double.parseDouble(st.nextToken());
+			double c2X = Double.parseDouble(st.nextToken());
+			double c2Y = Double.parseDouble(st.nextToken());
+			double offset1 = Double.parseDouble(st.nextToken());
+			double offset2 = Double.parseDouble(st.nextToken());
+			double[] poly1 = null, poly2 = null;
+			if (st.hasMoreTokens()) {
+				poly1 = CalibrationModel.parsePolynomial(st.nextToken());
+				poly2 = CalibrationModel.parsePolynomial(st.nextToken());
+			}
+			return new CalibrationProfile(name, mag, zoom, width, height, mpp,
+					new CalibrationModel(c1X, c1Y, c2X, c2Y, offset1, offset2, poly1, poly2));
+		} catch (java.util.NoSuchElementException e) {
+			throw new IllegalArgumentException("Calibration profile "+name+" has too few fields.");
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Calibration profile "+name+" has a field that is not a number.");
+		}
+	}
+
+	/**
+	 * @return the fields of the profile, separated by spaces, in the order parse() expects them
+	 */
+	public String formatFields() {
+		double[] c = model.getLinear();
+		String fields = magnification+" "+zoom+" "+width+" "+height+" "+micronsPerPixel
+				+" "+c[0]+" "+c[1]+" "+c[2]+" "+c[3]+" "+model.getOffset1()+" "+model.getOffset2();
+		if (model.hasDistortion())
+			fields += " "+CalibrationModel.formatPolynomial(model.getPolynomial1())
+					+" "+CalibrationModel.formatPolynomial(model.getPolynomial2());
+		return fields;
+	}
+
+}
@@ -0,0 +1,104 @@
+package laserj.path;
+
+/* Name: ArcFitter.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Compiles a polyline into a Trajectory of lines and circular arcs.
+ * Curved cuts drawn freehand arrive as many short straight segments. Walking along the polyline, the longest run
+ * of vertices that lies within a tolerance of a single circular arc is replaced by that arc; vertices that do not
+ * fit an arc are kept as straight lines. The arc is the circle through the first, middle and last vertex of the
+ * run, so it starts and ends exactly on the original vertices, and every vertex in between must lie within the
+ * tolerance of it and be passed in the same rotational direction.
+ * Fit in mirror coordinates, so that the arcs are true circles for the controller.
+ */
+
+public class ArcFitter {
+
+	private static final int MIN_ARC_VERTICES = 4;		// an arc must replace at least 3 line segments
+	private static final int MAX_ARC_VERTICES = 500;
+	private static final double MAX_SWEEP = 350.0;		// degrees; full circles are left as two arcs
+
+	private ArcFitter() { }
+
+	/**
+	 * @param x axis 1 positions of the vertices, starting with the start of the path
+	 * @param y axis 2 positions of the vertices
+	 * @param tolerance largest allowed distance between a vertex and the arc replacing it, or 0 to fit no arcs
+	 */
+	public static Trajectory fit(double[] x, double[] y, double tolerance) {
+		int n = x.length;
+		Trajectory t = new Trajectory(x[0], y[0], n);
+		double[] arc = new double[3];
+		int i = 0;
+		while (i < n - 1) {
+			int best = -1;
+			double[] bestArc = new double[3];
+			if (tolerance > 0) {
+				int limit = Math.min(n - 1, i + MAX_ARC_VERTICES - 1);
+				for (int j = i + MIN_ARC_VERTICES - 1; j <= limit; j++) {
+					if (fitArc(x, y, i, j, tolerance, arc)) {
+						best = j;
+						System.arraycopy(arc, 0, bestArc, 0, 3);
+					} else if (best >= 0) {
+						break;		// the run stopped being circular
+					}
+				}
+			}
+			if (best >= 0) {
+				t.arcTo(bestArc[0], bestArc[1], bestArc[2], x[best], y[best]);
+				i = best;
+			} else {
+				t.lineTo(x[i+1], y[i+1]);
+				i++;
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * Checks whether vertices first..last lie on one arc.
+	 * @param arc receives center x, center y and sweep in degrees
+	 */
+	static boolean fitArc(double[] x, double[] y, int first, int last, double tolerance, double[] arc) {
+		int mid = (first + last) / 2;
+		double ax = x[first], ay = y[first];
+		double bx = x[mid], by = y[mid];
+		double cx = x[last], cy = y[last];
+		double d = 2 * (ax*(by - cy) + bx*(cy - ay) + cx*(ay - by));
+		double span = Math.hypot(cx - ax, cy - ay) + Math.hypot(bx - ax, by - ay);
+		if (Math.abs(d) < 1e-12 * span * span || span == 0) return false;		// collinear
+		double a2 = ax*ax + ay*ay, b2 = bx*bx + by*by, c2 = cx*cx + cy*cy;
+		double ox = (a2*(by - cy) + b2*(cy - ay) + c2*(ay - by)) / d;
+		double oy = (a2*(cx - bx) + b2*(ax - cx) + c2*(bx - ax)) / d;
+		double r = Math.hypot(ax - ox, ay - oy);
+
+		double sweep = 0;
+		double prev = Math.atan2(ay - oy, ax - ox);
+		int direction = 0;
+		for (int k = first + 1; k <= last; k++) {
+			if (Math.abs(Math.hypot(x[k] - ox, y[k] - oy) - r) > tolerance) return false;
+			double ang = Math.atan2(y[k] - oy, x[k] - ox);
+			double step = ang - prev;
+			if (step > Math.PI) step -= 2*Math.PI;
+			else if (step < -Math.PI) step += 2*Math.PI;
+			int dir = step > 0 ? 1 : step < 0 ? -1 : 0;
+			if (dir != 0) {
+				if (direction != 0 && dir != direction) return false;	// doubles back
+				direction = dir;
+			}
+			// the chord between neighbouring vertices must also stay within the tolerance of the arc
+			if (r * (1 - Math.cos(step / 2)) > tolerance) return false;
+			sweep += step;
+			prev = ang;
+		}
+		double degrees = Math.toDegrees(sweep);
+		if (Math.abs(degrees) > MAX_SWEEP || direction == 0) return false;
+		arc[0] = ox;
+		arc[1] = oy;
+		arc[2] = degrees;
+		return true;
+	}
+
+}
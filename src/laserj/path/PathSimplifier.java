@@ -0,0 +1,83 @@
+package laserj.path;
+
+/* Name: PathSimplifier.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Ramer-Douglas-Peucker simplification of a polyline.
+ * Freehand selections have a vertex at nearly every pixel, most of them almost collinear with their neighbours.
+ * This removes every vertex that lies within a tolerance of the simplified path, so the path keeps its shape
+ * (no point of the original is further than the tolerance from the result) with far fewer segments.
+ * The first and last vertices are always kept, so closed paths stay closed.
+ */
+
+public class PathSimplifier {
+
+	private PathSimplifier() { }
+
+	/**
+	 * @param x x coordinates of the vertices
+	 * @param y y coordinates of the vertices
+	 * @param tolerance largest allowed distance between a removed vertex and the simplified path,
+	 * in the same units as x and y
+	 * @return indices of the vertices to keep, in order
+	 */
+	public static int[] simplify(double[] x, double[] y, double tolerance) {
+		int n = x.length;
+		if (n <= 2 || tolerance <= 0) {
+			int[] all = new int[n];
+			for (int i = 0; i < n; i++) all[i] = i;
+			return all;
+		}
+		boolean[] keep = new boolean[n];
+		keep[0] = keep[n-1] = true;
+		double tol2 = tolerance * tolerance;
+
+		// iterative rather than recursive, since freehand paths can have thousands of vertices
+		int[] stack = new int[2*n];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = n - 1;
+		while (top > 0) {
+			int last = stack[--top];
+			int first = stack[--top];
+			double maxd2 = -1;
+			int index = -1;
+			for (int i = first + 1; i < last; i++) {
+				double d2 = distance2(x[i], y[i], x[first], y[first], x[last], y[last]);
+				if (d2 > maxd2) {
+					maxd2 = d2;
+					index = i;
+				}
+			}
+			if (index >= 0 && maxd2 > tol2) {
+				keep[index] = true;
+				stack[top++] = first;
+				stack[top++] = index;
+				stack[top++] = index;
+				stack[top++] = last;
+			}
+		}
+
+		int count = 0;
+		for (int i = 0; i < n; i++) if (keep[i]) count++;
+		int[] kept = new int[count];
+		for (int i = 0, j = 0; i < n; i++) if (keep[i]) kept[j++] = i;
+		return kept;
+	}
+
+	/**
+	 * @return squared distance from (px,py) to the segment from (ax,ay) to (bx,by)
+	 */
+	static double distance2(double px, double py, double ax, double ay, double bx, double by) {
+		double dx = bx - ax, dy = by - ay;
+		double len2 = dx*dx + dy*dy;
+		double t = len2 > 0 ? ((px - ax)*dx + (py - ay)*dy) / len2 : 0;
+		if (t < 0) t = 0;
+		else if (t > 1) t = 1;
+		double ex = ax + t*dx - px, ey = ay + t*dy - py;
+		return ex*ex + ey*ey;
+	}
+
+}
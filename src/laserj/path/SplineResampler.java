@@ -0,0 +1,157 @@
+package laserj.path;
+
+/* Name: SplineResampler.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Resamples a polyline at constant arc length along a smooth curve through its vertices.
+ * Selection vertices are unevenly spaced, so a path traced vertex by vertex dwells longer, and delivers more
+ * laser dose, where the vertices are dense. The curve through the vertices is a centripetal Catmull-Rom spline,
+ * which passes through every vertex without the loops and cusps a uniform spline makes at uneven spacing.
+ * It is resampled in a single pass: each spline segment is flattened into SUBSTEPS chords, and a point is
+ * emitted every time the distance travelled along them reaches the next multiple of the spacing. The number of
+ * points is therefore the cut length divided by the spacing.
+ * A path whose last vertex equals its first is treated as closed, and the spline continues smoothly across it.
+ * Vertices where the path turns by more than a corner angle are kept exactly: the spline is split there, each
+ * piece ends on the corner with its own tangent, and the spacing restarts from the corner. A corner angle of 0
+ * makes every turning vertex a corner, so the path is resampled along its straight edges, as a polygon or
+ * segmented line selection should be.
+ */
+
+import java.util.Arrays;
+
+public class SplineResampler {
+
+	private static final int SUBSTEPS = 16;		// chords per spline segment used to measure arc length
+	private static final double SHARP_CORNER = 90;	// degrees of turn above which a vertex is kept as a corner
+
+	private SplineResampler() { }
+
+	/**
+	 * Resamples a smooth curve, keeping only sharp corners.
+	 * @param x x coordinates of the vertices
+	 * @param y y coordinates of the vertices
+	 * @param spacing distance between resampled points along the curve, in the same units as x and y
+	 * @return {x, y} of the resampled points; the first and last vertices are kept exactly
+	 */
+	public static double[][] resample(double[] x, double[] y, double spacing) {
+		return resample(x, y, spacing, SHARP_CORNER);
+	}
+
+	/**
+	 * @param cornerDegrees turn above which a vertex is kept as a corner; 0 to keep every turning vertex
+	 * @return {x, y} of the resampled points; the first and last vertices and the corners are kept exactly
+	 */
+	public static double[][] resample(double[] x, double[] y, double spacing, double cornerDegrees) {
+		// drop repeated vertices, which have no direction
+		int n = 0;
+		double[] px = new double[x.length], py = new double[y.length];
+		for (int i = 0; i < x.length; i++) {
+			if (n > 0 && x[i] == px[n-1] && y[i] == py[n-1]) continue;
+			px[n] = x[i];
+			py[n] = y[i];
+			n++;
+		}
+		if (n < 2 || spacing <= 0)
+			return new double[][] {Arrays.copyOf(px, n), Arrays.copyOf(py, n)};
+		boolean closed = n > 3 && px[n-1] == px[0] && py[n-1] == py[0];
+		boolean[] corner = new boolean[n];
+		double cosCorner = Math.cos(Math.toRadians(cornerDegrees));
+		for (int i = 1; i < n - 1; i++)
+			corner[i] = isCorner(px[i-1], py[i-1], px[i], py[i], px[i+1], py[i+1], cosCorner);
+		if (closed)
+			corner[0] = corner[n-1] = isCorner(px[n-2], py[n-2], px[0], py[0], px[1], py[1], cosCorner);
+
+		int capacity = 4 * n;
+		double[] rx = new double[capacity], ry = new double[capacity];
+		rx[0] = px[0];
+		ry[0] = py[0];
+		int m = 1;
+		int fixed = 1;				// points up to the last corner, which stay
+		double travelled = 0;		// distance since the last emitted point
+		double lastX = px[0], lastY = py[0];
+		for (int i = 0; i < n - 1; i++) {
+			// control points p0..p3 for the segment from vertex i to vertex i+1, reflected at ends and corners
+			double x1 = px[i], y1 = py[i], x2 = px[i+1], y2 = py[i+1];
+			double x0, y0, x3, y3;
+			if (i > 0 && !corner[i]) { x0 = px[i-1]; y0 = py[i-1]; }
+			else if (closed && !corner[i]) { x0 = px[n-2]; y0 = py[n-2]; }
+			else { x0 = 2*x1 - x2; y0 = 2*y1 - y2; }
+			if (i < n - 2 && !corner[i+1]) { x3 = px[i+2]; y3 = py[i+2]; }
+			else if (closed && !corner[i+1]) { x3 = px[1]; y3 = py[1]; }
+			else { x3 = 2*x2 - x1; y3 = 2*y2 - y1; }
+
+			// centripetal knot spacing
+			double t1 = Math.sqrt(Math.max(Math.hypot(x1 - x0, y1 - y0), 1e-12));
+			double t2 = t1 + Math.sqrt(Math.hypot(x2 - x1, y2 - y1));
+			double t3 = t2 + Math.sqrt(Math.max(Math.hypot(x3 - x2, y3 - y2), 1e-12));
+
+			for (int s = 1; s <= SUBSTEPS; s++) {
+				double t = t1 + (t2 - t1) * s / SUBSTEPS;
+				double cx, cy;
+				if (s == SUBSTEPS) {
+					cx = x2;
+					cy = y2;
+				} else {
+					// Barry-Goldman pyramidal evaluation
+					double a1x = lerp(x0, x1, 0, t1, t), a1y = lerp(y0, y1, 0, t1, t);
+					double a2x = lerp(x1, x2, t1, t2, t), a2y = lerp(y1, y2, t1, t2, t);
+					double a3x = lerp(x2, x3, t2, t3, t), a3y = lerp(y2, y3, t2, t3, t);
+					double b1x = lerp(a1x, a2x, 0, t2, t), b1y = lerp(a1y, a2y, 0, t2, t);
+					double b2x = lerp(a2x, a3x, t1, t3, t), b2y = lerp(a2y, a3y, t1, t3, t);
+					cx = lerp(b1x, b2x, t1, t2, t);
+					cy = lerp(b1y, b2y, t1, t2, t);
+				}
+				double chord = Math.hypot(cx - lastX, cy - lastY);
+				// emit every point at which the distance travelled reaches the spacing
+				while (travelled + chord >= spacing) {
+					double f = (spacing - travelled) / chord;
+					double ex = lastX + f * (cx - lastX), ey = lastY + f * (cy - lastY);
+					if (m == capacity) {
+						capacity *= 2;
+						rx = Arrays.copyOf(rx, capacity);
+						ry = Arrays.copyOf(ry, capacity);
+					}
+					rx[m] = ex;
+					ry[m] = ey;
+					m++;
+					chord -= spacing - travelled;
+					lastX = ex;
+					lastY = ey;
+					travelled = 0;
+				}
+				travelled += chord;
+				lastX = cx;
+				lastY = cy;
+			}
+			if (corner[i+1] || i == n - 2) {
+				// land exactly on the corner or last vertex; a short remainder is merged into the final interval
+				if (travelled < 0.5 * spacing && m > fixed) m--;
+				if (m == capacity) {
+					capacity *= 2;
+					rx = Arrays.copyOf(rx, capacity);
+					ry = Arrays.copyOf(ry, capacity);
+				}
+				rx[m] = x2;
+				ry[m] = y2;
+				m++;
+				fixed = m;
+				travelled = 0;
+			}
+		}
+		return new double[][] {Arrays.copyOf(rx, m), Arrays.copyOf(ry, m)};
+	}
+
+	// Whether the direction from (ax, ay) through (bx, by) to (cx, cy) turns by more than the corner angle
+	private static boolean isCorner(double ax, double ay, double bx, double by, double cx, double cy, double cosCorner) {
+		double ux = bx - ax, uy = by - ay, vx = cx - bx, vy = cy - by;
+		double cos = (ux*vx + uy*vy) / (Math.hypot(ux, uy) * Math.hypot(vx, vy));
+		return cos < cosCorner;
+	}
+
+	private static double lerp(double a, double b, double ta, double tb, double t) {
+		return tb == ta ? a : a + (b - a) * (t - ta) / (tb - ta);
+	}
+
+}
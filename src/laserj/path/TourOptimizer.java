@@ -0,0 +1,161 @@
+package laserj.path;
+
+/* Name: TourOptimizer.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Orders a set of targets to minimize the total mirror travel needed to visit them all.
+ * The tour starts and ends at a fixed depot (the mirror home position). It is built by nearest-neighbour
+ * construction and then improved by 2-opt (reversing a stretch of the tour) and Or-opt (moving a run of one to
+ * three targets elsewhere) until no move shortens it or the time budget runs out. Distances are Euclidean, so
+ * pass mirror coordinates (mm) rather than pixels: the pixel-to-mirror calibration is neither isotropic nor
+ * orthogonal, and the shortest tour in pixels is not the shortest for the mirror.
+ */
+
+public class TourOptimizer {
+
+	private static final int OR_OPT_MAX_RUN = 3;
+
+	private TourOptimizer() { }
+
+	/**
+	 * @param x x positions of the targets
+	 * @param y y positions of the targets
+	 * @param depotX x position at which the tour starts and ends
+	 * @param depotY y position at which the tour starts and ends
+	 * @param budgetMillis time allowed for improving the tour; construction always completes
+	 * @return the target indices in visiting order
+	 */
+	public static int[] order(double[] x, double[] y, double depotX, double depotY, long budgetMillis) {
+		int n = x.length;
+		long deadline = System.nanoTime() + budgetMillis * 1000000L;
+
+		// node 0 is the depot, node i+1 is target i
+		double[] px = new double[n+1], py = new double[n+1];
+		px[0] = depotX;
+		py[0] = depotY;
+		System.arraycopy(x, 0, px, 1, n);
+		System.arraycopy(y, 0, py, 1, n);
+
+		// nearest-neighbour construction
+		int[] tour = new int[n+1];
+		boolean[] visited = new boolean[n+1];
+		visited[0] = true;
+		for (int k = 1; k <= n; k++) {
+			int from = tour[k-1], best = -1;
+			double bestd = Double.MAX_VALUE;
+			for (int j = 1; j <= n; j++) {
+				if (visited[j]) continue;
+				double d = dist(px, py, from, j);
+				if (d < bestd) {
+					bestd = d;
+					best = j;
+				}
+			}
+			tour[k] = best;
+			visited[best] = true;
+		}
+
+		// alternate 2-opt and Or-opt passes until neither improves the tour
+		boolean improved = n > 2;
+		while (improved && System.nanoTime() < deadline) {
+			improved = twoOpt(px, py, tour, deadline);
+			improved |= orOpt(px, py, tour, deadline);
+		}
+
+		int[] order = new int[n];
+		for (int k = 0; k < n; k++) order[k] = tour[k+1] - 1;
+		return order;
+	}
+
+	/**
+	 * Reverses tour[i+1..j] whenever that shortens the tour.
+	 */
+	private static boolean twoOpt(double[] px, double[] py, int[] tour, long deadline) {
+		int m = tour.length;
+		boolean improved = false;
+		for (int i = 0; i < m - 1; i++) {
+			if (System.nanoTime() > deadline) break;
+			int a = tour[i], b = tour[i+1];
+			double dab = dist(px, py, a, b);
+			for (int j = i + 2; j < m; j++) {
+				int c = tour[j], d = tour[(j+1) % m];
+				if (d == a) continue;
+				double delta = dist(px, py, a, c) + dist(px, py, b, d) - dab - dist(px, py, c, d);
+				if (delta < -1e-12) {
+					for (int lo = i + 1, hi = j; lo < hi; lo++, hi--) {
+						int t = tour[lo]; tour[lo] = tour[hi]; tour[hi] = t;
+					}
+					b = tour[i+1];
+					dab = dist(px, py, a, b);
+					improved = true;
+				}
+			}
+		}
+		return improved;
+	}
+
+	/**
+	 * Moves runs of up to OR_OPT_MAX_RUN consecutive targets, possibly reversed, to wherever they fit best.
+	 * The depot at tour[0] never moves.
+	 */
+	private static boolean orOpt(double[] px, double[] py, int[] tour, long deadline) {
+		int m = tour.length;
+		boolean improved = false;
+		int[] run = new int[OR_OPT_MAX_RUN];
+		for (int len = 1; len <= OR_OPT_MAX_RUN; len++) {
+			for (int i = 1; i + len <= m; i++) {
+				if (System.nanoTime() > deadline) return improved;
+				int prev = tour[i-1], first = tour[i], last = tour[i+len-1], next = tour[(i+len) % m];
+				double removeGain = dist(px, py, prev, first) + dist(px, py, last, next) - dist(px, py, prev, next);
+				if (removeGain <= 1e-12) continue;
+				// best insertion between tour[k] and tour[k+1], outside the run
+				int bestk = -1;
+				boolean bestReversed = false;
+				double bestDelta = -1e-12;
+				for (int k = 0; k < m; k++) {
+					if (k >= i - 1 && k < i + len) continue;
+					int p = tour[k], q = tour[(k+1) % m];
+					double forward = dist(px, py, p, first) + dist(px, py, last, q) - dist(px, py, p, q);
+					double reversed = dist(px, py, p, last) + dist(px, py, first, q) - dist(px, py, p, q);
+					double delta = Math.min(forward, reversed) - removeGain;
+					if (delta < bestDelta) {
+						bestDelta = delta;
+						bestk = k;
+						bestReversed = reversed < forward;
+					}
+				}
+				if (bestk < 0) continue;
+				for (int r = 0; r < len; r++) run[r] = tour[i + (bestReversed ? len - 1 - r : r)];
+				if (bestk < i) {		// shift tour[bestk+1..i-1] right to open the gap after bestk
+					System.arraycopy(tour, bestk + 1, tour, bestk + 1 + len, i - bestk - 1);
+					System.arraycopy(run, 0, tour, bestk + 1, len);
+				} else {				// shift tour[i+len..bestk] left
+					System.arraycopy(tour, i + len, tour, i, bestk - i - len + 1);
+					System.arraycopy(run, 0, tour, bestk - len + 1, len);
+				}
+				improved = true;
+			}
+		}
+		return improved;
+	}
+
+	/**
+	 * @return total length of the tour from the depot through the targets in the given order and back
+	 */
+	public static double length(double[] x, double[] y, int[] order, double depotX, double depotY) {
+		double total = 0, cx = depotX, cy = depotY;
+		for (int k = 0; k < order.length; k++) {
+			total += Math.hypot(x[order[k]] - cx, y[order[k]] - cy);
+			cx = x[order[k]];
+			cy = y[order[k]];
+		}
+		return total + Math.hypot(depotX - cx, depotY - cy);
+	}
+
+	private static double dist(double[] px, double[] py, int a, int b) {
+		return Math.hypot(px[a] - px[b], py[a] - py[b]);
+	}
+
+}
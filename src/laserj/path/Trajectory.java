@@ -0,0 +1,120 @@
+package laserj.path;
+
+/* Name: Trajectory.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: A compiled mirror path: a start position followed by straight-line (ESP300 HL) and circular-arc
+ * (ESP300 HC) segments, in mirror coordinates (mm). Each segment starts where the previous one ends.
+ * Segments are held in parallel primitive arrays so long paths cost no per-segment objects.
+ * Arc sweeps are in degrees, positive counterclockwise in the (axis 1, axis 2) plane.
+ */
+
+public class Trajectory {
+
+	public static final byte LINE = 0, ARC = 1;
+
+	private final double startX, startY;
+	private int n = 0;
+	private byte[] type;
+	private double[] x, y, cx, cy, degrees;
+
+	/**
+	 * @param startX axis 1 position at which the path starts, mm
+	 * @param startY axis 2 position at which the path starts, mm
+	 * @param capacity expected number of segments
+	 */
+	public Trajectory(double startX, double startY, int capacity) {
+		this.startX = startX;
+		this.startY = startY;
+		capacity = Math.max(4, capacity);
+		type = new byte[capacity];
+		x = new double[capacity];
+		y = new double[capacity];
+		cx = new double[capacity];
+		cy = new double[capacity];
+		degrees = new double[capacity];
+	}
+
+	/**
+	 * Builds a trajectory of straight lines through the given vertices, starting at the first one.
+	 */
+	public static Trajectory lines(double[] xs, double[] ys, int count) {
+		Trajectory t = new Trajectory(xs[0], ys[0], count - 1);
+		for (int i = 1; i < count; i++) t.lineTo(xs[i], ys[i]);
+		return t;
+	}
+
+	public void lineTo(double ex, double ey) {
+		grow();
+		type[n] = LINE;
+		x[n] = ex;
+		y[n] = ey;
+		n++;
+	}
+
+	/**
+	 * @param ccx axis 1 position of the arc center
+	 * @param ccy axis 2 position of the arc center
+	 * @param sweep arc angle in degrees, positive counterclockwise
+	 * @param ex axis 1 position of the end of the arc
+	 * @param ey axis 2 position of the end of the arc
+	 */
+	public void arcTo(double ccx, double ccy, double sweep, double ex, double ey) {
+		grow();
+		type[n] = ARC;
+		cx[n] = ccx;
+		cy[n] = ccy;
+		degrees[n] = sweep;
+		x[n] = ex;
+		y[n] = ey;
+		n++;
+	}
+
+	private void grow() {
+		if (n < type.length) return;
+		int size = 2 * type.length;
+		type = java.util.Arrays.copyOf(type, size);
+		x = java.util.Arrays.copyOf(x, size);
+		y = java.util.Arrays.copyOf(y, size);
+		cx = java.util.Arrays.copyOf(cx, size);
+		cy = java.util.Arrays.copyOf(cy, size);
+		degrees = java.util.Arrays.copyOf(degrees, size);
+	}
+
+	public int size() { return n; }
+	public double getStartX() { return startX; }
+	public double getStartY() { return startY; }
+	public byte getType(int i) { return type[i]; }
+	public double getX(int i) { return x[i]; }
+	public double getY(int i) { return y[i]; }
+	public double getCenterX(int i) { return cx[i]; }
+	public double getCenterY(int i) { return cy[i]; }
+	public double getDegrees(int i) { return degrees[i]; }
+
+	public double getSegmentStartX(int i) { return i == 0 ? startX : x[i-1]; }
+	public double getSegmentStartY(int i) { return i == 0 ? startY : y[i-1]; }
+
+	/**
+	 * @return path length of segment i, mm
+	 */
+	public double length(int i) {
+		double sx = getSegmentStartX(i), sy = getSegmentStartY(i);
+		if (type[i] == LINE) return Math.hypot(x[i] - sx, y[i] - sy);
+		return Math.hypot(sx - cx[i], sy - cy[i]) * Math.abs(Math.toRadians(degrees[i]));
+	}
+
+	public double length() {
+		double total = 0;
+		for (int i = 0; i < n; i++) total += length(i);
+		return total;
+	}
+
+	public int countArcs() {
+		int arcs = 0;
+		for (int i = 0; i < n; i++) if (type[i] == ARC) arcs++;
+		return arcs;
+	}
+
+}
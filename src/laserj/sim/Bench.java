@@ -0,0 +1,239 @@
+package laserj.sim;
+
+/* Name: Bench.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Command-line benchmark of the microbeam against the simulated mirror controller and shutter.
+ * A circular path is traced point by point, streamed, run as a stored program, and streamed as fitted arcs,
+ * and the wall-clock time of each is printed next to the MotionEstimator prediction, followed by the command timing statistics. No hardware is
+ * needed, so throughput changes can be compared on any machine:
+ *   java -Djava.awt.headless=true -Dmicrobeam.sim.speed=10 -cp bin:lib/ij.jar:lib/jssc.jar laserj.sim.Bench [vertices]
+ * With a speed factor above 1, times are printed in simulated seconds; host-side waits such as IJ.wait are then
+ * over-counted by the same factor. The command statistics are always in wall-clock ms.
+ * Finally the heap allocated while streaming is measured with the allocation counters of the calling thread and
+ * the bus writer thread (JMH is not available in this build). First, short and long paths are streamed through the
+ * microbeam, mirror and command bus to the simulator, which separates the fixed cost of each call from the cost
+ * per segment. The caller measured 0 bytes per segment and about 500 bytes per call. The writer thread measured
+ * about 48 bytes per segment, all of it from the simulated port, which copies every line it receives into a
+ * String. Second, the same blocks are sent through a command bus to a port that discards them and acknowledges
+ * each one; this measured 0 bytes per segment on both threads.
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+
+import ij.*;
+import ij.process.*;
+import laserj.*;
+import laserj.path.Trajectory;
+
+public class Bench {
+
+	public static void main(String[] args) throws IOException {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+
+		useSimulators();
+
+		ImageProcessor ip = new ByteProcessor(512, 512);
+		double[] x = new double[n+1], y = new double[n+1];		// vertex 0 is the start of the path
+		for (int i = 0; i <= n; i++) {
+			double t = 2*Math.PI * i / n;
+			x[i] = 256 + 100*Math.cos(t);
+			y[i] = 256 + 100*Math.sin(t);
+		}
+
+		long t0 = System.nanoTime();
+		Microbeam microbeam = new Microbeam(Microbeam.CONFIG_FILENAME);
+		report("open microbeam", t0);
+
+		microbeam.moveToPIXELS(x[0], y[0], ip, 1);
+		MotionEstimator estimator = microbeam.getMotionEstimator();
+		Trajectory lines = microbeam.compilePIXELS(x, y, ip, 1, 0);
+		double predicted = 0;
+		for (int i = 0; i < lines.size(); i++)
+			predicted += estimator.moveSeconds(lines.length(i));
+		t0 = System.nanoTime();
+		for (int i = 1; i <= n; i++)
+			microbeam.moveToPIXELS(x[i], y[i], ip, 1);
+		report(n + " vertices point by point", t0, predicted);
+
+		t0 = System.nanoTime();
+		microbeam.streamPIXELS(x, y, ip, 1);
+		report(n + " vertices streamed", t0, estimator.schedule(lines).getTotal());
+
+		t0 = System.nanoTime();
+		microbeam.programPIXELS(x, y, ip, 1);
+		report(n + " vertices stored program, first run", t0);
+
+		t0 = System.nanoTime();
+		microbeam.programPIXELS(x, y, ip, 1);
+		report(n + " vertices stored program, repeat", t0);
+
+		Trajectory arcs = microbeam.compilePIXELS(x, y, ip, 1, 0.5);
+		t0 = System.nanoTime();
+		microbeam.streamPath(arcs);
+		report(n + " vertices streamed as " + arcs.countArcs() + " arcs and " + (arcs.size() - arcs.countArcs()) + " lines", t0,
+				estimator.schedule(arcs).getTotal());
+
+		t0 = System.nanoTime();
+		microbeam.openShutter();
+		microbeam.closeShutter();
+		report("shutter open and close", t0);
+
+		double[] allocation = streamAllocation(microbeam, ip);
+		double[] busAllocation = busAllocation(circle(microbeam, ip, 400));
+
+		microbeam.off();
+
+		System.out.println();
+		System.out.println("Command\tTiming\tCount\tp50 (ms)\tp99 (ms)\tmax (ms)");
+		for (String command : CommandStats.commands()) {
+			for (int metric = 0; metric < CommandStats.METRIC_NAMES.length; metric++) {
+				LatencyHistogram h = CommandStats.get(command, metric);
+				if (h.getCount() == 0) continue;
+				System.out.println(command + "\t" + CommandStats.METRIC_NAMES[metric] + "\t" + h.getCount()
+						+ "\t" + IJ.d2s(h.percentile(50) / 1000.0, 3) + "\t" + IJ.d2s(h.percentile(99) / 1000.0, 3)
+						+ "\t" + IJ.d2s(h.getMax() / 1000.0, 3));
+			}
+		}
+		System.out.println();
+		System.out.println("Streaming through the command bus:\t" + IJ.d2s(allocation[0], 1) + " bytes allocated per segment and "
+				+ IJ.d2s(allocation[1], 0) + " per call by the caller, " + IJ.d2s(allocation[2], 1) + " per segment by the bus thread and simulated port");
+		System.out.println("Command bus alone:\t" + IJ.d2s(busAllocation[0], 1) + " bytes allocated per segment by the caller, "
+				+ IJ.d2s(busAllocation[1], 1) + " by the bus thread");
+		System.exit(0);
+	}
+
+	/**
+	 * Points the microbeam configuration at a temporary file that opens the simulated controller and shutter.
+	 */
+	static void useSimulators() throws IOException {
+		File config = File.createTempFile("Microbeam", ".txt");
+		config.deleteOnExit();
+		PrintWriter out = new PrintWriter(new FileWriter(config));
+		out.println("version = " + MicrobeamConfig.VERSION);
+		out.println("mirror.port = " + Esp300Simulator.PORT_NAME);
+		out.println("shutter.port = " + D122Simulator.PORT_NAME);
+		out.println("microns.per.pixel = 0.3");
+		out.println("calibration.axis1.x = -8.898069436720426E-4");
+		out.println("calibration.axis1.y = 0.0020576785572415986");
+		out.println("calibration.axis2.x = 0.001995114006514658");
+		out.println("calibration.axis2.y = 8.550488599348534E-4");
+		out.close();
+		System.setProperty("microbeam.config", config.getPath());
+	}
+
+	/**
+	 * Streams a short and a long circular path through the microbeam, after warm-up runs for the JIT to compile
+	 * the streaming loop, counting the heap allocated by the calling thread and the command bus writer thread.
+	 * @return heap bytes allocated by the caller per segment and per call, and by the writer thread per segment,
+	 * or NaN if the JVM cannot count allocations
+	 */
+	private static double[] streamAllocation(Microbeam microbeam, ImageProcessor ip) {
+		double[] none = {Double.NaN, Double.NaN, Double.NaN};
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) return none;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		long[] ids = {Thread.currentThread().getId(), -1};
+		for (Thread t : Thread.getAllStackTraces().keySet())
+			if (t.getName().equals(Esp300Simulator.PORT_NAME + " command bus")) ids[1] = t.getId();
+		if (ids[1] < 0) return none;
+		int shortSize = 40, longSize = 400;
+		Trajectory shortPath = circle(microbeam, ip, shortSize), longPath = circle(microbeam, ip, longSize);
+		microbeam.moveToMM(shortPath.getStartX(), shortPath.getStartY());	// both start and end here
+		for (int run = 0; run < 5; run++)
+			microbeam.streamPath(longPath);
+		long[] shortBytes = new long[2], longBytes = new long[2];
+		int runs = 3;
+		for (int run = 0; run < runs; run++) {
+			allocated(threads, ids, microbeam, shortPath, shortBytes);
+			allocated(threads, ids, microbeam, longPath, longBytes);
+		}
+		double perSegment = (longBytes[0] - shortBytes[0]) / (double) runs / (longSize - shortSize);
+		return new double[] {perSegment, shortBytes[0] / (double) runs - perSegment * shortSize,
+				(longBytes[1] - shortBytes[1]) / (double) runs / (longSize - shortSize)};
+	}
+
+	// Adds the bytes allocated by each thread while streaming the path
+	private static void allocated(com.sun.management.ThreadMXBean threads, long[] ids, Microbeam microbeam, Trajectory path, long[] bytes) {
+		long caller = threads.getThreadAllocatedBytes(ids[0]), writer = threads.getThreadAllocatedBytes(ids[1]);
+		microbeam.streamPath(path);
+		bytes[0] += threads.getThreadAllocatedBytes(ids[0]) - caller;
+		bytes[1] += threads.getThreadAllocatedBytes(ids[1]) - writer;
+	}
+
+	/**
+	 * Sends the segments of a path as streamed blocks through a command bus to a port that discards them and
+	 * acknowledges each block at once, after enough warm-up runs for the JIT to compile the loop.
+	 * @return heap bytes allocated per segment by the caller and by the writer thread, or NaN if the JVM cannot
+	 * count allocations
+	 */
+	private static double[] busAllocation(Trajectory path) {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) return new double[] {Double.NaN, Double.NaN};
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		final byte[] ack = {'1', '\r', '\n'};
+		CommandBus bus = new CommandBus(new Transport() {
+			private Listener listener;
+			public void setListener(Listener listener) { this.listener = listener; }
+			public void write(byte[] data, int off, int len) { listener.received(ack, 0, ack.length); }
+			public void close() { }
+			public String getName() { return "echo"; }
+		}, 64);
+		long writer = -1;
+		for (Thread t : Thread.getAllStackTraces().keySet())
+			if (t.getName().equals("echo command bus")) writer = t.getId();
+		long caller = Thread.currentThread().getId();
+		int runs = 500, n = path.size();
+		long callerBefore = 0, writerBefore = 0;
+		double[] bytes = new double[2];
+		try {
+			for (int run = -runs; run < runs; run++) {
+				if (run == 0) {
+					callerBefore = threads.getThreadAllocatedBytes(caller);
+					writerBefore = threads.getThreadAllocatedBytes(writer);
+				}
+				for (int i = 0; i < n; i += 4) {
+					CommandBus.Command block = bus.command();
+					for (int j = i; j < Math.min(i + 4, n); j++)
+						block.encoder().segment(path, j).append(';');
+					block.encoder().append("1HQ").append(4).append(";1HS?");
+					bus.send(block, "HL", CommandBus.STATUS);
+					bus.await(block, 1000);
+					bus.release(block);
+				}
+			}
+			bytes[0] = (threads.getThreadAllocatedBytes(caller) - callerBefore) / (double) runs / n;
+			bytes[1] = (threads.getThreadAllocatedBytes(writer) - writerBefore) / (double) runs / n;	// before the thread ends
+		} catch (IOException e) {
+			return new double[] {Double.NaN, Double.NaN};
+		} finally {
+			bus.close();
+		}
+		return bytes;
+	}
+
+	// Closed circle of n lines with a radius of 20 pixels around the center of the image
+	static Trajectory circle(Microbeam microbeam, ImageProcessor ip, int n) {
+		double[] x = new double[n+1], y = new double[n+1];
+		for (int i = 0; i <= n; i++) {
+			double t = 2*Math.PI * (i % n) / n;
+			x[i] = 256 + 20*Math.cos(t);
+			y[i] = 256 + 20*Math.sin(t);
+		}
+		return microbeam.compilePIXELS(x, y, ip, 1, 0);
+	}
+
+	private static void report(String what, long t0) {
+		double seconds = (System.nanoTime() - t0) / 1e9 * Wire.SPEED;
+		Log.flush();
+		System.out.println(what + ":\t" + IJ.d2s(seconds, 3) + " s");
+	}
+
+	private static void report(String what, long t0, double predicted) {
+		report(what + " (predicted " + IJ.d2s(predicted, 3) + " s)", t0);
+	}
+
+}
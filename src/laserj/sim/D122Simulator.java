@@ -0,0 +1,99 @@
+package laserj.sim;
+
+/* Name: D122Simulator.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: In-process simulation of the UniBlitz D122 shutter driver.
+ * The driver opens the shutter on '@' and closes it on 'A'; line feeds and other bytes are ignored, and nothing
+ * is sent back. Each byte takes effect when it has crossed the simulated 300 baud line (33 ms per byte), which
+ * is the dominant shutter latency of the real hardware. The simulator keeps track of how often and for how long
+ * the shutter was open, i.e. the laser exposure of a job.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import laserj.Transport;
+
+public class D122Simulator implements Transport {
+
+	public static final String PORT_NAME = "SIM";
+
+	static final int BAUDRATE = 300;
+
+	private final Wire wire = new Wire(BAUDRATE);
+	private final BlockingQueue<long[]> input = new LinkedBlockingQueue<long[]>();	// {byte, arrival time}
+	private volatile boolean closed = false;
+	private final Thread driver;
+
+	// Shutter state, guarded by this
+	private boolean open = false;
+	private long openedAt;
+	private long openCount = 0;
+	private long openNanos = 0;
+
+	public D122Simulator() {
+		driver = new Thread("D122 simulator") {
+			public void run() {
+				try {
+					while (!closed) {
+						long[] b = input.take();
+						Wire.sleepUntil(b[1]);
+						if (b[0] == '@') setOpen(true);
+						else if (b[0] == 'A') setOpen(false);
+					}
+				} catch (InterruptedException e) { }
+			}
+		};
+		driver.setDaemon(true);
+		driver.start();
+	}
+
+	private synchronized void setOpen(boolean o) {
+		long now = System.nanoTime();
+		if (o && !open) {
+			openedAt = now;
+			openCount++;
+		} else if (!o && open) {
+			openNanos += now - openedAt;
+		}
+		open = o;
+	}
+
+	public void setListener(Listener listener) { }		// the D122 never replies
+
+	public synchronized void write(byte[] data, int off, int len) throws IOException {
+		if (closed) throw new IOException(PORT_NAME+" is closed");
+		for (int i = off; i < off + len; i++)
+			input.offer(new long[] {data[i] & 0xFF, wire.send(1)});
+	}
+
+	public void close() {
+		closed = true;
+		driver.interrupt();
+	}
+
+	public String getName() {
+		return PORT_NAME;
+	}
+
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	public synchronized long getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * @return total time the shutter has been open, in simulated seconds
+	 */
+	public synchronized double getOpenSeconds() {
+		long total = openNanos + (open ? System.nanoTime() - openedAt : 0);
+		return total / 1e9 * Wire.SPEED;
+	}
+
+}
@@ -0,0 +1,383 @@
+package laserj.sim;
+
+/* Name: Esp300Simulator.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: In-process simulation of the Newport ESP300 motion controller driving the mirror.
+ * It understands the subset of the ESP300 command language used by laserj.Mirror:
+ *   MO, MF          motor power on/off
+ *   HN, HX          create/delete group 1 from axes 1 and 2
+ *   HV, HA, HD      group velocity, acceleration, deceleration (set, or query with ?)
+ *   HL, HC          queue a line or an arc in the group trajectory buffer
+ *   HW, HQ          wait for the group to stop, wait for free trajectory buffer slots
+ *   HS?             group stopped? (1 = stopped)
+ *   DH, TP          define home, tell position
+ *   TB?             read error buffer
+ *   VE?             read firmware version
+ *   EP, QP, EX, XX  enter/quit program mode, execute/erase a stored program
+ *   WT              wait a number of ms
+ * Commands are separated by ';' and lines are terminated by CR; replies are terminated by CR/LF.
+ * Bytes travel over a simulated 19200 baud line in both directions (see Wire), commands are interpreted one
+ * after the other like on the controller, and queued segments are executed on a separate motion thread with
+ * trapezoidal velocity profiles: the group accelerates at HA when starting from rest, cruises at HV, and
+ * decelerates at HD when the trajectory buffer runs empty.
+ * Errors (unknown commands, bad parameters, motion without a group) are reported through TB?.
+ * The system property "microbeam.sim.hangAfter" makes the controller stop answering once that many segments
+ * have been queued: later commands are ignored while the queued segments are still executed.
+ */
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import laserj.MotionEstimator;
+import laserj.Transport;
+
+public class Esp300Simulator implements Transport {
+
+	public static final String PORT_NAME = "SIM";
+	static final String VERSION = "ESP300 Version 3.08 09/09/02";	// firmware reported by VE?
+
+	static final int BAUDRATE = 19200;
+	static final int TRAJECTORY_SLOTS = 10;		// segments held by the group trajectory buffer
+	private static final int AXES = 3;			// axes are numbered 1 and 2
+
+	private static final Pattern COMMAND = Pattern.compile("\\s*(\\d*)\\s*([A-Za-z]{2})\\s*(\\??)\\s*(.*?)\\s*");
+
+	private final Wire toController = new Wire(BAUDRATE);
+	private final Wire toHost = new Wire(BAUDRATE);
+	private final BlockingQueue<Line> input = new LinkedBlockingQueue<Line>();
+	private final StringBuilder partial = new StringBuilder();
+	private volatile Listener listener;
+	private volatile boolean closed = false;
+	private final Thread interpreter, motion;
+
+	// Controller state, guarded by this
+	private final boolean[] motorOn = new boolean[AXES];
+	private final double[] position = new double[AXES];
+	private int[] group = null;
+	private double velocity = 0.1, acceleration = 0.1, deceleration = 0.1;
+	private final ArrayDeque<Segment> trajectory = new ArrayDeque<Segment>();
+	private boolean moving = false;		// a segment is being executed
+	private boolean atRest = true;		// the last segment ended with the buffer empty
+	private double queuedX, queuedY;	// end of the last queued segment
+	private final ArrayDeque<String> errors = new ArrayDeque<String>();
+	private final Map<Integer, List<String>> programs = new HashMap<Integer, List<String>>();
+	private List<String> recording = null;
+	private long commands = 0, segments = 0;
+	private long queuedSegments = 0;
+	private final long hangAfter = Long.getLong("microbeam.sim.hangAfter", -1L);	// queued segments before hanging, -1 never
+	private volatile boolean hung = false;
+	private double pathLength = 0;
+	private final long startNanos = System.nanoTime();
+
+	public Esp300Simulator() {
+		interpreter = new Thread("ESP300 simulator commands") {
+			public void run() {
+				try {
+					while (!closed) {
+						Line line = input.take();
+						Wire.sleepUntil(line.arrival);
+						for (String cmd : line.text.split(";"))
+							execute(cmd);
+					}
+				} catch (InterruptedException e) { }
+			}
+		};
+		motion = new Thread("ESP300 simulator motion") {
+			public void run() {
+				try {
+					while (!closed) move();
+				} catch (InterruptedException e) { }
+			}
+		};
+		interpreter.setDaemon(true);
+		motion.setDaemon(true);
+		interpreter.start();
+		motion.start();
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public synchronized void write(byte[] data, int off, int len) throws IOException {
+		if (closed) throw new IOException(PORT_NAME+" is closed");
+		int count = 0;
+		for (int i = off; i < off + len; i++) {
+			char c = (char) (data[i] & 0xFF);
+			count++;
+			if (c == '\r') {
+				input.offer(new Line(partial.toString(), toController.send(count)));
+				partial.setLength(0);
+				count = 0;
+			} else if (c != '\n') {
+				partial.append(c);
+			}
+		}
+		if (count > 0) toController.send(count);
+	}
+
+	public void close() {
+		closed = true;
+		interpreter.interrupt();
+		motion.interrupt();
+	}
+
+	public String getName() {
+		return PORT_NAME;
+	}
+
+	/* COMMAND INTERPRETER */
+
+	private void execute(String cmd) throws InterruptedException {
+		if (hung || cmd.trim().length() == 0) return;
+		Matcher m = COMMAND.matcher(cmd);
+		if (!m.matches()) {
+			error(6, "COMMAND DOES NOT EXIST");
+			return;
+		}
+		int n = m.group(1).length() == 0 ? 0 : Integer.parseInt(m.group(1));
+		String mnemonic = m.group(2).toUpperCase();
+		boolean query = m.group(3).length() > 0;
+		String arg = m.group(4);
+		synchronized (this) {
+			commands++;
+			if (recording != null && !mnemonic.equals("QP")) {
+				recording.add(cmd.trim());
+				return;
+			}
+		}
+		try {
+			if (mnemonic.equals("MO") || mnemonic.equals("MF")) {
+				if (!checkAxis(n)) return;
+				if (query) { reply(isMotorOn(n) ? "1" : "0"); return; }
+				synchronized (this) { motorOn[n] = mnemonic.equals("MO"); }
+			} else if (mnemonic.equals("HN")) {
+				String[] axes = arg.split(",");
+				int[] g = new int[axes.length];
+				for (int i = 0; i < axes.length; i++) {
+					g[i] = Integer.parseInt(axes[i].trim());
+					if (!checkAxis(g[i])) return;
+				}
+				if (n != 1 || g.length != 2) { error(7, "PARAMETER OUT OF RANGE"); return; }
+				synchronized (this) { group = g; }
+			} else if (mnemonic.equals("HX")) {
+				synchronized (this) {
+					waitStopped();
+					group = null;
+				}
+			} else if (mnemonic.equals("HV") || mnemonic.equals("HA") || mnemonic.equals("HD")) {
+				if (query) {
+					double value;
+					synchronized (this) { value = mnemonic.equals("HV") ? velocity : mnemonic.equals("HA") ? acceleration : deceleration; }
+					reply(format(value));
+					return;
+				}
+				synchronized (this) {
+					double value = Double.parseDouble(arg);
+					if (value <= 0) { error(7, "PARAMETER OUT OF RANGE"); return; }
+					if (mnemonic.equals("HV")) velocity = value;
+					else if (mnemonic.equals("HA")) acceleration = value;
+					else deceleration = value;
+				}
+			} else if (mnemonic.equals("HL") || mnemonic.equals("HC")) {
+				String[] p = arg.split(",");
+				if (p.length != (mnemonic.equals("HL") ? 2 : 3)) { error(38, "COMMAND PARAMETER MISSING"); return; }
+				double a = Double.parseDouble(p[0].trim()), b = Double.parseDouble(p[1].trim());
+				synchronized (this) {
+					if (group == null || !motorOn[group[0]] || !motorOn[group[1]]) { error(1, "GROUP NOT DEFINED OR MOTOR OFF"); return; }
+					if (trajectory.size() >= TRAJECTORY_SLOTS) { error(2, "TRAJECTORY BUFFER FULL"); return; }
+					double sx = queuedX, sy = queuedY;
+					if (!moving && trajectory.isEmpty()) { sx = position[group[0]]; sy = position[group[1]]; }
+					Segment s = mnemonic.equals("HL") ? Segment.line(sx, sy, a, b) : Segment.arc(sx, sy, a, b, Double.parseDouble(p[2].trim()));
+					trajectory.add(s);
+					if (++queuedSegments == hangAfter) hung = true;
+					queuedX = s.x1;
+					queuedY = s.y1;
+					notifyAll();
+				}
+			} else if (mnemonic.equals("HW")) {
+				synchronized (this) { waitStopped(); }
+			} else if (mnemonic.equals("HQ")) {
+				int free = arg.length() == 0 ? 1 : Integer.parseInt(arg);
+				if (free > TRAJECTORY_SLOTS) { error(7, "PARAMETER OUT OF RANGE"); return; }
+				synchronized (this) {
+					while (TRAJECTORY_SLOTS - trajectory.size() < free) wait();
+				}
+			} else if (mnemonic.equals("HS")) {
+				reply(isStopped() ? "1" : "0");
+			} else if (mnemonic.equals("DH")) {
+				if (!checkAxis(n)) return;
+				synchronized (this) {
+					waitStopped();
+					position[n] = arg.length() == 0 ? 0 : Double.parseDouble(arg);
+				}
+			} else if (mnemonic.equals("TP")) {
+				if (!checkAxis(n)) return;
+				reply(format(getPosition(n)));
+			} else if (mnemonic.equals("TB")) {
+				String e;
+				synchronized (this) { e = errors.poll(); }
+				reply(e != null ? e : "0, "+elapsedMillis()+", NO ERROR DETECTED");
+			} else if (mnemonic.equals("VE")) {
+				reply(VERSION);
+			} else if (mnemonic.equals("EP")) {
+				synchronized (this) {
+					recording = new ArrayList<String>();
+					programs.put(n, recording);
+				}
+			} else if (mnemonic.equals("QP")) {
+				synchronized (this) { recording = null; }
+			} else if (mnemonic.equals("EX")) {
+				List<String> program;
+				synchronized (this) { program = programs.get(n); }
+				if (program == null) { error(7, "PARAMETER OUT OF RANGE"); return; }
+				for (String c : program) execute(c);
+			} else if (mnemonic.equals("XX")) {
+				synchronized (this) { programs.remove(n); }
+			} else if (mnemonic.equals("WT")) {
+				Wire.sleepUntil(System.nanoTime() + Wire.scaled(Double.parseDouble(arg) / 1000.0));
+			} else {
+				error(6, "COMMAND DOES NOT EXIST");
+			}
+		} catch (NumberFormatException e) {
+			error(7, "PARAMETER OUT OF RANGE");
+		}
+	}
+
+	private boolean checkAxis(int n) {
+		if (n >= 1 && n < AXES) return true;
+		error(9, "AXIS NUMBER OUT OF RANGE");
+		return false;
+	}
+
+	private synchronized boolean isMotorOn(int n) {
+		return motorOn[n];
+	}
+
+	private synchronized boolean isStopped() {
+		return !moving && trajectory.isEmpty();
+	}
+
+	private synchronized void waitStopped() throws InterruptedException {
+		while (moving || !trajectory.isEmpty()) wait();
+	}
+
+	private synchronized void error(int code, String message) {
+		errors.add(code+", "+elapsedMillis()+", "+message);
+	}
+
+	private long elapsedMillis() {
+		return (System.nanoTime() - startNanos) / 1000000L;
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.US, "%.6f", value);
+	}
+
+	/**
+	 * Sends a reply line to the host once it has crossed the simulated serial line.
+	 */
+	private void reply(String text) throws InterruptedException {
+		byte[] bytes = (text + "\r\n").getBytes();
+		Wire.sleepUntil(toHost.send(bytes.length));
+		Listener l = listener;
+		if (l != null && !closed) l.received(bytes, 0, bytes.length);
+	}
+
+	/* MOTION */
+
+	private void move() throws InterruptedException {
+		Segment s;
+		boolean fromRest, toRest;
+		double v, a, d;
+		synchronized (this) {
+			while (trajectory.isEmpty()) wait();
+			s = trajectory.poll();
+			fromRest = atRest;
+			toRest = trajectory.isEmpty();
+			moving = true;
+			v = velocity; a = acceleration; d = deceleration;
+			notifyAll();		// a trajectory buffer slot has been freed
+		}
+		Wire.sleepUntil(System.nanoTime() + Wire.scaled(duration(s.length, v, a, d, fromRest, toRest)));
+		synchronized (this) {
+			if (group != null) {
+				position[group[0]] = s.x1;
+				position[group[1]] = s.y1;
+			}
+			segments++;
+			pathLength += s.length;
+			moving = false;
+			atRest = trajectory.isEmpty();
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Time to travel a segment with a trapezoidal velocity profile; see MotionEstimator.
+	 */
+	static double duration(double length, double v, double a, double d, boolean fromRest, boolean toRest) {
+		return MotionEstimator.profileSeconds(length, v, a, d, fromRest, toRest);
+	}
+
+	/* STATISTICS */
+
+	public synchronized double getPosition(int axis) {
+		return position[axis];
+	}
+
+	public synchronized long getCommandCount() {
+		return commands;
+	}
+
+	public synchronized long getSegmentCount() {
+		return segments;
+	}
+
+	public synchronized double getPathLength() {
+		return pathLength;
+	}
+
+	public synchronized int getErrorCount() {
+		return errors.size();
+	}
+
+	private static class Line {
+		final String text;
+		final long arrival;
+		Line(String text, long arrival) {
+			this.text = text;
+			this.arrival = arrival;
+		}
+	}
+
+	private static class Segment {
+		double x1, y1, length;
+
+		static Segment line(double x0, double y0, double x1, double y1) {
+			Segment s = new Segment();
+			s.x1 = x1;
+			s.y1 = y1;
+			s.length = Math.hypot(x1 - x0, y1 - y0);
+			return s;
+		}
+
+		static Segment arc(double x0, double y0, double cx, double cy, double degrees) {
+			double r = Math.hypot(x0 - cx, y0 - cy);
+			double end = Math.atan2(y0 - cy, x0 - cx) + Math.toRadians(degrees);
+			Segment s = new Segment();
+			s.x1 = cx + r*Math.cos(end);
+			s.y1 = cy + r*Math.sin(end);
+			s.length = r * Math.abs(Math.toRadians(degrees));
+			return s;
+		}
+	}
+
+}
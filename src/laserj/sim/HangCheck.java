@@ -0,0 +1,81 @@
+package laserj.sim;
+
+/* Name: HangCheck.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Command-line check that the microbeam stops sending motion when the mirror controller hangs.
+ * The simulated controller stops answering after HANG_AFTER segments of a streamed path (see the property
+ * "microbeam.sim.hangAfter" of Esp300Simulator). Streaming must then fail with an exception after at most the
+ * blocks already in flight, no further blocks may be written, and later moves must fail without writing anything.
+ *   java -Djava.awt.headless=true -cp bin:lib/ij.jar:lib/jssc.jar laserj.sim.HangCheck
+ * Prints PASS or FAIL and exits with status 0 or 1.
+ */
+
+import java.io.IOException;
+
+import ij.*;
+import ij.process.*;
+import laserj.*;
+import laserj.path.Trajectory;
+
+public class HangCheck {
+
+	private static final int HANG_AFTER = 40;		// segments queued before the controller stops answering
+	private static final int MAX_BLOCKS = HANG_AFTER / 4 + 2 + 1;	// blocks of 4 segments, 2 in flight, and the last one
+
+	public static void main(String[] args) throws IOException {
+		System.setProperty("microbeam.sim.hangAfter", String.valueOf(HANG_AFTER + 1));	// the first move queues one
+		if (System.getProperty("microbeam.sim.speed") == null) System.setProperty("microbeam.sim.speed", "20");
+		Bench.useSimulators();
+		ImageProcessor ip = new ByteProcessor(512, 512);
+		Microbeam microbeam = new Microbeam(Microbeam.CONFIG_FILENAME);
+		Trajectory path = Bench.circle(microbeam, ip, 400);
+		microbeam.moveToMM(path.getStartX(), path.getStartY());
+
+		boolean pass = true;
+		long before = writes();
+		try {
+			microbeam.streamPath(path);
+			System.out.println("Streaming to a hung controller returned normally");
+			pass = false;
+		} catch (IllegalArgumentException e) {
+			System.out.println("Streaming failed: " + e.getMessage());
+		}
+		long blocks = writes() - before;
+		IJ.wait(1000);
+		if (writes() != before + blocks) {
+			System.out.println("Blocks were written after streaming failed");
+			pass = false;
+		}
+		if (blocks > MAX_BLOCKS) {
+			System.out.println(blocks + " blocks written, at most " + MAX_BLOCKS + " expected");
+			pass = false;
+		}
+		if (!microbeam.isBroken()) {
+			System.out.println("Microbeam not marked broken");
+			pass = false;
+		}
+		try {
+			microbeam.moveToMM(0, 0);
+			System.out.println("Moving a hung controller returned normally");
+			pass = false;
+		} catch (IllegalArgumentException e) {
+			if (writes() != before + blocks) {
+				System.out.println("A move was written to a hung controller");
+				pass = false;
+			}
+		}
+		microbeam.off();
+		System.out.println(blocks + " blocks written before the hang was detected");
+		System.out.println(pass ? "PASS" : "FAIL");
+		System.exit(pass ? 0 : 1);
+	}
+
+	// Motion lines written to the controller: moves and streamed blocks
+	private static long writes() {
+		return CommandStats.get("HL", CommandStats.WRITE).getCount();
+	}
+
+}
@@ -0,0 +1,57 @@
+package laserj.sim;
+
+/* Name: SimServer.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Serves a simulated ESP300 over TCP, as a local stand-in for a serial-to-Ethernet bridge.
+ * Start it with
+ *   java -cp bin:lib/ij.jar:lib/jssc.jar laserj.sim.SimServer [port]
+ * and set the mirror port in the microbeam config file to tcp://localhost:<port> (default 4001).
+ * Each connection gets a freshly powered-up controller.
+ */
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import laserj.Transport;
+
+public class SimServer {
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 4001;
+		ServerSocket server = new ServerSocket(port);
+		System.out.println("Simulated ESP300 listening on port " + port);
+		while (true) {
+			final Socket socket = server.accept();
+			socket.setTcpNoDelay(true);
+			System.out.println("Connection from " + socket.getRemoteSocketAddress());
+			final OutputStream out = socket.getOutputStream();
+			Esp300Simulator controller = new Esp300Simulator();
+			controller.setListener(new Transport.Listener() {
+				public void received(byte[] data, int off, int len) {
+					try {
+						out.write(data, off, len);
+						out.flush();
+					} catch (IOException e) {
+						try { socket.close(); } catch (IOException e1) { }
+					}
+				}
+			});
+			InputStream in = socket.getInputStream();
+			byte[] data = new byte[1024];
+			try {
+				int n;
+				while ((n = in.read(data)) > 0)
+					controller.write(data, 0, n);
+			} catch (IOException e) {
+				System.out.println("Connection closed: " + e.getMessage());
+			}
+			controller.close();
+			socket.close();
+		}
+	}
+
+}
@@ -0,0 +1,62 @@
+package laserj.sim;
+
+/* Name: Wire.java
+ * Project: Laser microdissection of dorsal closure
+ * Version: 3.0
+ * Author: Roger Zou
+ * Date: 10/17/2026
+ * Description: Timing model of one direction of a serial line.
+ * Each byte takes 10 bit times (start bit, 8 data bits, stop bit) and bytes queue up behind each other,
+ * so a command written while the line is still busy arrives correspondingly later.
+ * All simulated times are divided by the speed factor given by the system property "microbeam.sim.speed"
+ * (default 1, real time), which lets long jobs be simulated faster than real time.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+final class Wire {
+
+	static final int BITS_PER_BYTE = 10;
+
+	static final double SPEED = speed();
+
+	private final long byteNanos;
+	private long free = System.nanoTime();	// time at which the line is next idle
+
+	Wire(int baudrate) {
+		byteNanos = (long) (BITS_PER_BYTE * 1e9 / baudrate / SPEED);
+	}
+
+	/**
+	 * Queues bytes on the line.
+	 * @return the System.nanoTime() at which the last byte arrives at the other end
+	 */
+	synchronized long send(int nbytes) {
+		free = Math.max(System.nanoTime(), free) + nbytes * byteNanos;
+		return free;
+	}
+
+	private static double speed() {
+		try {
+			double s = Double.parseDouble(System.getProperty("microbeam.sim.speed", "1"));
+			return s > 0 ? s : 1;
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * @param seconds simulated duration
+	 * @return the wall-clock duration in ns after applying the speed factor
+	 */
+	static long scaled(double seconds) {
+		return (long) (seconds * 1e9 / SPEED);
+	}
+
+	static void sleepUntil(long deadline) throws InterruptedException {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0)
+			TimeUnit.NANOSECONDS.sleep(remaining);
+	}
+
+}